@@ -19,10 +19,12 @@ package tigase.xml;
 
 import tigase.xml.annotations.TODO;
 
-import java.io.FileReader;
+import java.io.File;
 import java.util.*;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 //import java.util.StringTokenizer;
 
@@ -56,22 +58,30 @@ public class Element
 
 	protected String xmlns = null;
 
+	/**
+	 * Cached hash code of name, attributes and cdata, 0 if it has to be calculated again. It is reset by every method
+	 * changing them, subclasses modifying children directly have to call {@link #childrenChanged()}. Changes made
+	 * directly to a child, ie. by {@link CData#setCdata(String)}, are not tracked and leave the cache stale.
+	 */
+	private int hash = 0;
+
+	/**
+	 * Cached text of all cdata children when there are more of them, <code>null</code> if it has to be built again.
+	 * It is reset together with {@link #hash} by every method changing children, the same as the hash it is not
+	 * updated when a child is changed in place.
+	 */
+	private String cdataText = null;
+
 	public static void main(String[] args) throws Exception {
 		if (args.length < 1) {
 			System.err.println("You must give file name as parameter.");
 			System.exit(1);
 		}    // end of if (args.length < 1)
 
-		FileReader file = new FileReader(args[0]);
-		char[] buff = new char[1];
 		SimpleParser parser = new SimpleParser();
 		DomBuilderHandler dom = new DomBuilderHandler();
-		int result = -1;
 
-		while ((result = file.read(buff)) != -1) {
-			parser.parse(dom, buff, 0, result);
-		}
-		file.close();
+		parser.parse(dom, new File(args[0]));
 
 		Queue<Element> elems = dom.getParsedElements();
 
@@ -144,6 +154,7 @@ public class Element
 	}
 
 	public void addAttributes(Map<String, String> attrs) {
+		hash = 0;
 		if (attributes == null) {
 			attributes = new XMLIdentityHashMap<String, String>(attrs.size());
 		}
@@ -153,13 +164,24 @@ public class Element
 	}
 
 	public void addCData(String argCData) {
+		if ((children != null) && !children.isEmpty() && (children.getLast() instanceof CData)) {
+
+			// Adjacent text is merged, so in most cases element has a single cdata child
+			CData last = (CData) children.removeLast();
+
+			children.add(new CData(last.getCData() + argCData));
+			childrenChanged();
+
+			return;
+		}
 		addChild(new CData(argCData));
 	}
 
-	public void addChild(XMLNodeIfc child) {
+	public void addChild(XMLNodeIfc<?> child) {
 		if (child == null) {
 			throw new NullPointerException("Element child can not be null.");
 		}
+		childrenChanged();
 		if (children == null) {
 			children = new LinkedList<XMLNodeIfc>();
 		}    // end of if (children == null)
@@ -172,6 +194,7 @@ public class Element
 		if (children == null) {
 			return;
 		}    // end of if (children == null)
+		childrenChanged();
 		if (this.children == null) {
 			this.children = new LinkedList<XMLNodeIfc>();
 		}    // end of if (children == null)
@@ -272,20 +295,51 @@ public class Element
 		return result;
 	}
 
+	/**
+	 * Compares elements by name, then by attributes and then by cdata. Child elements are not compared.
+	 */
 	@Override
 	public int compareTo(Element elem) {
-		return toStringNoChildren().compareTo(elem.toStringNoChildren());
+		if (this == elem) {
+			return 0;
+		}
+
+		int result = name.compareTo(elem.name);
+
+		if (result == 0) {
+			result = compareAttributes(elem);
+		}
+		if (result == 0) {
+			String cdata = cdataToString();
+			String elemCData = elem.cdataToString();
+
+			if (cdata != elemCData) {
+				result = (cdata == null) ? -1 : ((elemCData == null) ? 1 : cdata.compareTo(elemCData));
+			}
+		}
+
+		return result;
 	}
 
+	/**
+	 * Checks whether elements have the same name, attributes and cdata. Child elements are not compared.
+	 */
 	@Override
 	public boolean equals(Object obj) {
-		if (obj instanceof Element) {
-			Element elem = (Element) obj;
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Element)) {
+			return false;
+		}
+
+		Element elem = (Element) obj;
 
-			return toStringNoChildren().equals(elem.toStringNoChildren());
+		if ((name != elem.name) || ((hash != 0) && (elem.hash != 0) && (hash != elem.hash))) {
+			return false;
 		}
 
-		return false;
+		return attributesEqual(elem) && Objects.equals(cdataToString(), elem.cdataToString());
 	}
 
 	public Element findChildStaticStr(String[] elementPath) {
@@ -335,6 +389,17 @@ public class Element
 		return findChild(elementPath.split("/"));
 	}
 
+	/**
+	 * Finds child element using compiled path, which is much cheaper than parsing the path on every call
+	 *
+	 * @param path compiled path, the first segment of which matches this element
+	 *
+	 * @return found element or <code>null</code>
+	 */
+	public Element findChild(ElementPath path) {
+		return path.evaluate(this);
+	}
+
 	public Element findChild(Matcher<Element> matcher) {
 		if (children != null) {
 			for (XMLNodeIfc node : children) {
@@ -354,7 +419,7 @@ public class Element
 
 	public List<Element> findChildren(Matcher<Element> matcher) {
 		if (children != null) {
-			LinkedList<Element> result = new LinkedList<Element>();
+			List<Element> result = new ArrayList<Element>();
 
 			for (XMLNodeIfc node : children) {
 				if (!(node instanceof Element)) {
@@ -375,7 +440,7 @@ public class Element
 
 	public <R> List<R> flatMapChildren(Function<Element, Collection<? extends R>> mapper) {
 		if (children != null) {
-			LinkedList<R> result = new LinkedList<R>();
+			List<R> result = new ArrayList<R>();
 
 			for (XMLNodeIfc node : children) {
 				if (!(node instanceof Element)) {
@@ -393,6 +458,10 @@ public class Element
 	}
 
 	public void forEachChild(Consumer<Element> consumer) {
+		forEachChild(null, consumer);
+	}
+
+	public void forEachChild(Matcher<Element> matcher, Consumer<Element> consumer) {
 		if (children != null) {
 			for (XMLNodeIfc node : children) {
 				if (!(node instanceof Element)) {
@@ -400,11 +469,53 @@ public class Element
 				}
 
 				Element el = (Element) node;
-				consumer.accept(el);
+				if (matcher == null || matcher.match(el)) {
+					consumer.accept(el);
+				}
 			}
 		}
 	}
 
+	/**
+	 * Returns iterator over child elements, skipping cdata, without copying them to a new list like
+	 * {@link #getChildren()} does. Children can't be removed with the iterator.
+	 *
+	 * @return iterator over child elements
+	 */
+	public Iterator<Element> childrenIterator() {
+		return (children != null) ? new ChildrenIterator(children.iterator()) : Collections.<Element>emptyIterator();
+	}
+
+	/**
+	 * Returns sequential stream of child elements, without copying them to a new list
+	 *
+	 * @return stream of child elements
+	 */
+	public Stream<Element> streamChildren() {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(childrenIterator(), Spliterator.ORDERED | Spliterator.NONNULL),
+				false);
+	}
+
+	/**
+	 * Returns number of child elements, not counting cdata
+	 *
+	 * @return number of child elements
+	 */
+	public int getChildrenCount() {
+		int result = 0;
+
+		if (children != null) {
+			for (XMLNodeIfc<?> node : children) {
+				if (node instanceof Element) {
+					++result;
+				}
+			}
+		}
+
+		return result;
+	}
+
 	/**
 	 * @deprecated use {@link #getAttributeStaticStr(java.lang.String) } instead.
 	 */
@@ -482,6 +593,7 @@ public class Element
 	}
 
 	public void setAttributes(Map<String, String> newAttributes) {
+		hash = 0;
 		attributes = new XMLIdentityHashMap<String, String>(newAttributes.size());
 		for (Map.Entry<String, String> entry : newAttributes.entrySet()) {
 			setAttribute(entry.getKey(), entry.getValue());
@@ -511,6 +623,7 @@ public class Element
 	}
 
 	public void setCData(String argCData) {
+		childrenChanged();
 
 		if (children != null) {
 			for (XMLNodeIfc child : children) {
@@ -614,6 +727,12 @@ public class Element
 		return (child != null) ? child.getCData() : null;
 	}
 
+	public String getChildCData(ElementPath path) {
+		Element child = path.evaluate(this);
+
+		return (child != null) ? child.getCData() : null;
+	}
+
 	public String getChildCDataStaticStr(String[] elementPath) {
 		Element child = findChildStaticStr(elementPath);
 
@@ -628,7 +747,7 @@ public class Element
 
 	public List<Element> getChildren() {
 		if (children != null) {
-			LinkedList<Element> result = new LinkedList<Element>();
+			List<Element> result = new ArrayList<Element>();
 
 			for (XMLNodeIfc node : children) {
 				if (node instanceof Element) {
@@ -643,6 +762,7 @@ public class Element
 	}
 
 	public void setChildren(List<XMLNodeIfc> children) {
+		childrenChanged();
 		this.children = new LinkedList<XMLNodeIfc>();
 		for (XMLNodeIfc child : children) {
 			this.children.add(child.clone());
@@ -667,6 +787,12 @@ public class Element
 		return (child != null) ? child.getChildren() : null;
 	}
 
+	public List<Element> getChildren(ElementPath path) {
+		Element child = path.evaluate(this);
+
+		return (child != null) ? child.getChildren() : null;
+	}
+
 	public List<Element> getChildrenStaticStr(String[] elementPath) {
 		Element child = findChildStaticStr(elementPath);
 
@@ -684,6 +810,7 @@ public class Element
 	}
 
 	public void setName(String argName) {
+		hash = 0;
 		this.name = argName.intern();
 	}
 
@@ -730,7 +857,24 @@ public class Element
 
 	@Override
 	public int hashCode() {
-		return toStringNoChildren().hashCode();
+		int result = hash;
+
+		if (result == 0) {
+			int attrs = 0;
+
+			if (attributes != null) {
+				for (Map.Entry<String, String> entry : attributes.entrySet()) {
+					attrs += entry.getKey().hashCode() ^ Objects.hashCode(entry.getValue());
+				}
+			}
+
+			String cdata = cdataToString();
+
+			result = (31 * name.hashCode() + attrs) * 31 + ((cdata != null) ? cdata.hashCode() : 0);
+			hash = result;
+		}
+
+		return result;
 	}
 
 	public <R> R map(Function<Element, ? extends R> mapper) {
@@ -743,7 +887,7 @@ public class Element
 
 	public <R> List<R> mapChildren(Matcher<Element> matcher, Function<Element, ? extends R> mapper) {
 		if (children != null) {
-			LinkedList<R> result = new LinkedList<R>();
+			List<R> result = new ArrayList<R>();
 
 			for (XMLNodeIfc node : children) {
 				if (!(node instanceof Element)) {
@@ -768,6 +912,7 @@ public class Element
 
 	public void removeAttribute(String key) {
 		if (attributes != null) {
+			hash = 0;
 			attributes.remove(key.intern());
 		}    // end of if (attributes == null)
 	}
@@ -777,11 +922,37 @@ public class Element
 
 		if (children != null) {
 			res = children.remove(child);
+			if (res) {
+				childrenChanged();
+			}
 		}    // end of if (children == null)
 
 		return res;
 	}
 
+	/**
+	 * Removes the given child instance. Unlike {@link #removeChild(Element)} it doesn't compare siblings with
+	 * <code>equals()</code>, so a different child equal to the given one is never removed in its place.
+	 *
+	 * @param child child element to remove
+	 *
+	 * @return <code>true</code> if the child was removed
+	 */
+	public boolean removeChildInstance(Element child) {
+		if (children != null) {
+			for (Iterator<?> it = children.iterator(); it.hasNext(); ) {
+				if (it.next() == child) {
+					it.remove();
+					childrenChanged();
+
+					return true;
+				}
+			}
+		}    // end of if (children == null)
+
+		return false;
+	}
+
 	public void setAttributeStaticStr(String elementPath[], String att_name, String att_value) {
 		Element child = findChildStaticStr(elementPath);
 
@@ -791,6 +962,7 @@ public class Element
 	}
 
 	public void setAttribute(String key, String value) {
+		hash = 0;
 		if (attributes == null) {
 			attributes = new XMLIdentityHashMap<String, String>(5);
 		}    // end of if (attributes == null)
@@ -805,6 +977,7 @@ public class Element
 	}
 
 	public void setAttributes(StringBuilder[] names, StringBuilder[] values) {
+		hash = 0;
 		attributes = new XMLIdentityHashMap<String, String>(names.length);
 		for (int i = 0; i < names.length; i++) {
 			if (names[i] != null) {
@@ -816,6 +989,7 @@ public class Element
 	}
 
 	public void setAttributes(String[] names, String[] values) {
+		hash = 0;
 		attributes = new XMLIdentityHashMap<String, String>(names.length);
 		for (int i = 0; i < names.length; i++) {
 			if (names[i] != null) {
@@ -963,21 +1137,142 @@ public class Element
 		return this;
 	}
 
+	/**
+	 * Drops cached hash code and cdata text. It has to be called by subclasses after they modify
+	 * <code>children</code> directly.
+	 */
+	protected void childrenChanged() {
+		hash = 0;
+		cdataText = null;
+	}
+
+	private boolean attributesEqual(Element elem) {
+		int size = (attributes != null) ? attributes.size() : 0;
+		int elemSize = (elem.attributes != null) ? elem.attributes.size() : 0;
+
+		if (size != elemSize) {
+			return false;
+		}
+		if (size > 0) {
+			for (Map.Entry<String, String> entry : attributes.entrySet()) {
+				String value = elem.attributes.get(entry.getKey());
+
+				if (!Objects.equals(entry.getValue(), value) ||
+						((value == null) && !elem.attributes.containsKey(entry.getKey()))) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	private int compareAttributes(Element elem) {
+		int size = (attributes != null) ? attributes.size() : 0;
+		int result = Integer.compare(size, (elem.attributes != null) ? elem.attributes.size() : 0);
+
+		if ((result != 0) || (size == 0) || attributesEqual(elem)) {
+			return result;
+		}
+
+		String[] keys = attributes.keySet().toArray(new String[size]);
+		String[] elemKeys = elem.attributes.keySet().toArray(new String[size]);
+
+		Arrays.sort(keys);
+		Arrays.sort(elemKeys);
+		for (int i = 0; (i < size) && (result == 0); i++) {
+			result = keys[i].compareTo(elemKeys[i]);
+		}
+		for (int i = 0; (i < size) && (result == 0); i++) {
+			String value = attributes.get(keys[i]);
+			String elemValue = elem.attributes.get(elemKeys[i]);
+
+			if (value != elemValue) {
+				result = (value == null) ? -1 : ((elemValue == null) ? 1 : value.compareTo(elemValue));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns text of all cdata children. Text of a single cdata child is returned directly, text of more of them is
+	 * joined and cached until children are changed.
+	 */
 	protected String cdataToString() {
-		StringBuilder result = new StringBuilder();
+		if (children == null) {
+			return null;
+		}
+		if (cdataText != null) {
+			return cdataText;
+		}
 
-		if (children != null) {
-			for (XMLNodeIfc child : children) {
+		String single = null;
+		StringBuilder result = null;
 
-				// This is weird but if there is a bug in some other component
-				// it may add null children to the element, let's be save here.
-				if ((child != null) && (child instanceof CData)) {
+		for (XMLNodeIfc<?> child : children) {
+
+			// This is weird but if there is a bug in some other component
+			// it may add null children to the element, let's be save here.
+			if ((child != null) && (child instanceof CData)) {
+				if (result != null) {
 					result.append(child.toString());
+				} else if (single != null) {
+					result = new StringBuilder(single.length() * 2).append(single).append(child.toString());
+				} else {
+					single = child.toString();
 				}
-			}    // end of for ()
-		}        // end of if (child != null)
+			}
+		}    // end of for ()
+		if (result != null) {
+			if (result.length() > 0) {
+				cdataText = result.toString();
+			}
 
-		return (result.length() > 0) ? result.toString() : null;
+			return cdataText;
+		}
+
+		return ((single != null) && !single.isEmpty()) ? single : null;
+	}
+
+	private static class ChildrenIterator
+			implements Iterator<Element> {
+
+		private final Iterator<?> iterator;
+		private Element next;
+
+		private ChildrenIterator(Iterator<?> iterator) {
+			this.iterator = iterator;
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Element next() {
+			Element result = next;
+
+			if (result == null) {
+				throw new NoSuchElementException();
+			}
+			advance();
+
+			return result;
+		}
+
+		private void advance() {
+			next = null;
+			while ((next == null) && iterator.hasNext()) {
+				Object node = iterator.next();
+
+				if (node instanceof Element) {
+					next = (Element) node;
+				}
+			}
+		}
 	}
 
 	public static interface Matcher<T> {
@@ -0,0 +1,213 @@
+/*
+ * Tigase XML Tools - Tigase XML Tools
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <code>ElementPath</code> is a compiled path to a child element, parsed once and then evaluated against any number
+ * of elements without allocating anything. Like in {@link Element#findChild(String[])} the first segment of the path
+ * matches the element itself and each following segment matches one of its children, ie.
+ * <code>message/body</code>. Each segment is an element name or <code>*</code> matching any name, followed by any
+ * number of predicates:
+ * <ul>
+ * <li><code>[@name]</code> - element has the attribute,</li>
+ * <li><code>[@name='value']</code> - attribute has the value,</li>
+ * <li><code>[@xmlns='value']</code> - element is in the namespace, declared by itself or inherited.</li>
+ * </ul>
+ * If more children match a segment, they are tried in order until the rest of the path matches, so
+ * <code>iq/query[@xmlns='jabber:iq:roster']/item[@subscription='both']</code> finds the first such item in any
+ * matching query. Path is immutable and may be shared between threads.
+ */
+public class ElementPath {
+
+	private static final String WILDCARD = "*";
+
+	private final String path;
+	private final Segment[] segments;
+
+	/**
+	 * Compiles the path
+	 *
+	 * @param path path to the element, segments separated by <code>/</code>, leading <code>/</code> is optional
+	 *
+	 * @return compiled path
+	 *
+	 * @throws IllegalArgumentException when the path is not valid
+	 */
+	public static ElementPath compile(String path) {
+		return new ElementPath(path);
+	}
+
+	private ElementPath(String path) {
+		this.path = path;
+
+		List<Segment> result = new ArrayList<Segment>();
+		int pos = path.startsWith("/") ? 1 : 0;
+
+		while (pos <= path.length()) {
+			pos = parseSegment(path, pos, result) + 1;
+		}
+		this.segments = result.toArray(new Segment[result.size()]);
+	}
+
+	/**
+	 * Finds the first element matching the path, starting from the given element which must match the first segment
+	 *
+	 * @param element element matched by the first segment
+	 *
+	 * @return found element or <code>null</code>
+	 */
+	public Element evaluate(Element element) {
+		return segments[0].matches(element) ? find(element, 1) : null;
+	}
+
+	/**
+	 * Checks whether any element matches the path
+	 *
+	 * @param element element matched by the first segment
+	 *
+	 * @return <code>true</code> if there is such an element
+	 */
+	public boolean matches(Element element) {
+		return evaluate(element) != null;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	private Element find(Element element, int idx) {
+		if (idx == segments.length) {
+			return element;
+		}
+		if (element.children == null) {
+			return null;
+		}
+
+		Segment segment = segments[idx];
+
+		for (XMLNodeIfc<?> node : element.children) {
+			if ((node instanceof Element) && segment.matches((Element) node)) {
+				Element result = find((Element) node, idx + 1);
+
+				if (result != null) {
+					return result;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Parses segment starting at the given position
+	 *
+	 * @return position of the separator after the segment or length of the path
+	 */
+	private static int parseSegment(String path, int start, List<Segment> result) {
+		int pos = start;
+
+		while ((pos < path.length()) && (path.charAt(pos) != '/') && (path.charAt(pos) != '[')) {
+			pos++;
+		}
+		if (pos == start) {
+			throw new IllegalArgumentException("Empty element name at " + start + " in path: " + path);
+		}
+
+		String name = path.substring(start, pos);
+		List<String> names = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+
+		while ((pos < path.length()) && (path.charAt(pos) == '[')) {
+			pos = parsePredicate(path, pos, names, values);
+		}
+		if ((pos < path.length()) && (path.charAt(pos) != '/')) {
+			throw new IllegalArgumentException("Unexpected character at " + pos + " in path: " + path);
+		}
+		result.add(new Segment(WILDCARD.equals(name) ? null : name.intern(), names, values));
+
+		return pos;
+	}
+
+	/**
+	 * Parses predicate starting at the given position
+	 *
+	 * @return position after the predicate
+	 */
+	private static int parsePredicate(String path, int start, List<String> names, List<String> values) {
+		int end = path.indexOf(']', start);
+
+		if ((end < 0) || (path.charAt(start + 1) != '@')) {
+			throw new IllegalArgumentException("Invalid predicate at " + start + " in path: " + path);
+		}
+
+		int eq = path.indexOf('=', start);
+
+		if ((eq < 0) || (eq > end)) {
+			names.add(path.substring(start + 2, end).trim().intern());
+			values.add(null);
+
+			return end + 1;
+		}
+
+		int quote = eq + 1;
+		char chr = (quote < path.length()) ? path.charAt(quote) : 0;
+		int close = (chr == '\'' || chr == '"') ? path.indexOf(chr, quote + 1) : -1;
+
+		if ((close < 0) || (close + 1 >= path.length()) || (path.charAt(close + 1) != ']')) {
+			throw new IllegalArgumentException("Invalid predicate value at " + start + " in path: " + path);
+		}
+		names.add(path.substring(start + 2, eq).trim().intern());
+		values.add(path.substring(quote + 1, close));
+
+		return close + 2;
+	}
+
+	private static class Segment {
+
+		private final String[] attNames;
+		private final String[] attValues;
+		private final String name;
+
+		private Segment(String name, List<String> attNames, List<String> attValues) {
+			this.name = name;
+			this.attNames = attNames.toArray(new String[attNames.size()]);
+			this.attValues = attValues.toArray(new String[attValues.size()]);
+		}
+
+		private boolean matches(Element element) {
+			if ((name != null) && (element.getName() != name)) {
+				return false;
+			}
+			for (int i = 0; i < attNames.length; i++) {
+				String value = (attNames[i] == "xmlns")
+							   ? element.getXMLNS()
+							   : element.getAttributeStaticStr(attNames[i]);
+
+				if ((value == null) || ((attValues[i] != null) && !attValues[i].equals(value))) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+}    // ElementPath
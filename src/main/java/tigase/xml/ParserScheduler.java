@@ -0,0 +1,337 @@
+/*
+ * Tigase XML Tools - Tigase XML Tools
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xml;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>ParserScheduler</code> drives parsing of many <em>XML</em> streams (connections) on a shared pool of threads.
+ * Data received for a connection is submitted together with the connection key and parsed later by one of the pool
+ * threads. As <code>SimpleParser</code> keeps all parsing state in the handler, each connection gets its own
+ * <code>DomBuilderHandler</code> and buffers of one connection are always parsed one after another in the order of
+ * submission, while buffers of different connections are parsed in parallel. Every completed top level element is
+ * delivered to the <code>StanzaSink</code> from the thread which parsed it, so elements of one connection are
+ * delivered in order as well. <p>By default tasks are executed by the common <code>ForkJoinPool</code>, but any
+ * <code>Executor</code> may be used, ie. virtual thread per task executor on JVMs supporting it.</p>
+ *
+ * @param <C> type of the connection key, it must provide proper <code>equals()</code> and <code>hashCode()</code>
+ */
+public class ParserScheduler<C> {
+
+	private static Logger log = Logger.getLogger("tigase.xml.ParserScheduler");
+
+	/** tasks of closed connections which still parse data submitted before they were closed */
+	private final ConcurrentHashMap<C, ConnectionTask> closing = new ConcurrentHashMap<C, ConnectionTask>();
+	private final ConcurrentHashMap<C, ConnectionTask> connections = new ConcurrentHashMap<C, ConnectionTask>();
+	private final ElementFactory elementFactory;
+	private final Executor executor;
+	private final SimpleParser parser;
+	private final StanzaSink<C> sink;
+
+	/**
+	 * Creates scheduler using shared parser instance and common <code>ForkJoinPool</code>.
+	 *
+	 * @param sink receiver of parsed elements
+	 */
+	public ParserScheduler(StanzaSink<C> sink) {
+		this(SingletonFactory.getParserInstance(), ForkJoinPool.commonPool(), null, sink);
+	}
+
+	/**
+	 * Creates scheduler.
+	 *
+	 * @param parser parser instance used for all connections
+	 * @param executor executor running parsing tasks
+	 * @param factory factory of elements created by DOM builders, if <code>null</code> default one is used
+	 * @param sink receiver of parsed elements
+	 */
+	public ParserScheduler(SimpleParser parser, Executor executor, ElementFactory factory, StanzaSink<C> sink) {
+		this.parser = parser;
+		this.executor = executor;
+		this.elementFactory = factory;
+		this.sink = sink;
+	}
+
+	/**
+	 * Submits data received for the connection. Data is parsed asynchronously so content of the array must not be
+	 * changed by the caller after submission. Arguments <code>off</code> and <code>len</code> have the same meaning as
+	 * in {@link SimpleParser#parse(SimpleHandler, char[], int, int)}.
+	 *
+	 * @param connection connection key
+	 * @param data characters received
+	 * @param off offset of data
+	 * @param len length of data
+	 */
+	public void submit(C connection, char[] data, int off, int len) {
+		Buffer buffer = new Buffer(data, off, len);
+		ConnectionTask task;
+
+		// Task of the connection closed concurrently doesn't accept data once it is finished
+		do {
+			task = connections.get(connection);
+			if (task == null) {
+				ConnectionTask newTask = new ConnectionTask(connection);
+
+				task = connections.putIfAbsent(connection, newTask);
+				if (task == null) {
+					task = newTask;
+				}
+			}
+		} while (!task.offer(buffer));
+		task.schedule();
+	}
+
+	/**
+	 * Submits data received for the connection.
+	 *
+	 * @param connection connection key
+	 * @param data characters received
+	 */
+	public void submit(C connection, char[] data) {
+		submit(connection, data, 0, data.length);
+	}
+
+	/**
+	 * Releases parser state kept for the connection. Data already submitted for the connection is still parsed, but
+	 * data submitted later starts a new <em>XML</em> stream, which is parsed only after all data of the closed one.
+	 *
+	 * @param connection connection key
+	 */
+	public synchronized void close(C connection) {
+		ConnectionTask task = connections.get(connection);
+
+		if (task != null) {
+
+			// Task created for the connection as soon as it is removed has to find the closed one
+			closing.put(connection, task);
+			connections.remove(connection, task);
+			task.close();
+		}
+	}
+
+	/**
+	 * Returns number of connections for which parser state is kept.
+	 *
+	 * @return number of connections
+	 */
+	public int getConnectionsCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Receiver of elements parsed by <code>ParserScheduler</code>. Methods are called from pool threads, but never
+	 * concurrently for the same connection.
+	 *
+	 * @param <C> type of the connection key
+	 */
+	public interface StanzaSink<C> {
+
+		/**
+		 * Called for each completed top level element.
+		 *
+		 * @param connection connection from which element was received
+		 * @param element parsed element
+		 */
+		void stanza(C connection, Element element);
+
+		/**
+		 * Called when data received from the connection is not valid <em>XML</em> or parser fails. All data submitted
+		 * later for this connection is ignored until it is closed.
+		 *
+		 * @param connection connection from which data was received
+		 * @param errorMessage parser error message
+		 */
+		void error(C connection, String errorMessage);
+
+	}
+
+	private static class Buffer {
+
+		private final char[] data;
+		private final int len;
+		private final int off;
+
+		private Buffer(char[] data, int off, int len) {
+			this.data = data;
+			this.off = off;
+			this.len = len;
+		}
+	}
+
+	private class ConnectionTask
+			extends DomBuilderHandler
+			implements Runnable {
+
+		private final Queue<Buffer> buffers = new ConcurrentLinkedQueue<Buffer>();
+		private final C connection;
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		private boolean closed = false;
+		private String errorMessage = null;
+		private boolean finished = false;
+		/** task of the same connection closed before, this task can't run until it is finished */
+		private ConnectionTask previous;
+		/** task of the same connection started when this one is finished */
+		private ConnectionTask successor = null;
+
+		private ConnectionTask(C connection) {
+			super(elementFactory != null ? elementFactory : new DefaultElementFactory());
+			this.connection = connection;
+			this.previous = closing.get(connection);
+		}
+
+		@Override
+		public void error(String errorMessage) {
+			super.error(errorMessage);
+			this.errorMessage = errorMessage;
+		}
+
+		@Override
+		public void run() {
+			ConnectionTask task = this;
+
+			// Task of the same connection waiting for this one runs right away on the same thread
+			while (task != null) {
+				task = task.runTask();
+			}
+		}
+
+		private ConnectionTask runTask() {
+			do {
+				try {
+					drain();
+				} finally {
+					scheduled.set(false);
+				}
+
+				// Data could be submitted after the queue was drained but before the flag was cleared
+			} while (!buffers.isEmpty() && scheduled.compareAndSet(false, true));
+
+			return tryFinish();
+		}
+
+		private synchronized boolean offer(Buffer buffer) {
+			if (finished) {
+				return false;
+			}
+			buffers.offer(buffer);
+
+			return true;
+		}
+
+		private void close() {
+			synchronized (this) {
+				closed = true;
+			}
+
+			ConnectionTask next = tryFinish();
+
+			if (next != null) {
+				executor.execute(next);
+			}
+		}
+
+		/**
+		 * Finishes closed task once all its data is parsed
+		 *
+		 * @return task of the same connection waiting for this one to finish, it has to be run by the caller
+		 */
+		private ConnectionTask tryFinish() {
+			ConnectionTask next;
+
+			synchronized (this) {
+				if (!closed || finished || scheduled.get() || !buffers.isEmpty()) {
+					return null;
+				}
+				finished = true;
+				next = successor;
+			}
+			closing.remove(connection, this);
+
+			return next;
+		}
+
+		/**
+		 * Makes the task run after this one is finished
+		 *
+		 * @return <code>false</code> if this task is already finished
+		 */
+		private synchronized boolean follow(ConnectionTask next) {
+			if (finished) {
+				return false;
+			}
+			successor = next;
+
+			return true;
+		}
+
+		private void drain() {
+			Buffer buffer;
+
+			while ((buffer = buffers.poll()) != null) {
+				if (errorMessage != null) {
+					continue;
+				}
+				try {
+					parser.parse(this, buffer.data, buffer.off, buffer.len);
+				} catch (Exception e) {
+					log.log(Level.WARNING, "Exception parsing data received from: " + connection, e);
+					errorMessage = "Parser exception: " + e;
+				}
+
+				Queue<Element> elems = getParsedElements();
+				Element elem;
+
+				while ((elem = elems.poll()) != null) {
+					try {
+						sink.stanza(connection, elem);
+					} catch (Exception e) {
+						log.log(Level.WARNING, "Exception delivering parsed element: " + elem, e);
+					}
+				}
+				if (errorMessage != null) {
+					try {
+						sink.error(connection, errorMessage);
+					} catch (Exception e) {
+						log.log(Level.WARNING, "Exception delivering parser error: " + errorMessage, e);
+					}
+				}
+			}
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				ConnectionTask prev = previous;
+
+				if (prev != null) {
+					previous = null;
+					if (prev.follow(this)) {
+						return;
+					}
+				}
+				executor.execute(this);
+			}
+		}
+	}
+}    // ParserScheduler
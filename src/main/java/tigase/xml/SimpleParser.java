@@ -20,8 +20,18 @@ package tigase.xml;
 import tigase.xml.annotations.TODO;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 /**
@@ -72,6 +82,8 @@ public class SimpleParser {
 	private static final char[] ERR_NAME_CHARS = {OPEN_BRACKET, QUESTION_MARK, AMP};
 	private static final char[] IGNORE_CHARS = {'\0'};
 	private static final boolean[] ALLOWED_CHARS_LOW = new boolean[0x20];
+	private static final int FILE_BUFFER_SIZE = 256 * 1024;
+	private static final int FILE_READ_BUFFER_SIZE = 1024 * 1024;
 
 	static {
 
@@ -114,6 +126,52 @@ public class SimpleParser {
 		parse(handler, input.toCharArray(), 0,input.length());
 	}
 
+	/**
+	 * Parses whole content of the <em>UTF-8</em> encoded file. File is read through its channel in large chunks into a
+	 * reused direct buffer, which are decoded directly to a big characters buffer passed to the parser, so there is no
+	 * per read copying or small reads overhead even for very big files. File is not memory mapped, as a mapping keeps
+	 * the file locked on some systems until it is garbage collected, so the file couldn't be replaced right after it
+	 * was parsed.
+	 *
+	 * @param handler handler receiving parser events
+	 * @param file file to parse
+	 *
+	 * @throws IOException if the file can not be read
+	 */
+	public final void parse(SimpleHandler handler, File file) throws IOException {
+		try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+			CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			ByteBuffer bytes = ByteBuffer.allocateDirect(FILE_READ_BUFFER_SIZE);
+			char[] chars = new char[FILE_BUFFER_SIZE];
+			CharBuffer out = CharBuffer.wrap(chars);
+			boolean last = false;
+
+			while (!last) {
+				last = channel.read(bytes) < 0;
+				bytes.flip();
+
+				CoderResult result;
+
+				do {
+					result = decoder.decode(bytes, out, last);
+					if (out.position() > 0) {
+						parse(handler, chars, 0, out.position());
+						out.clear();
+					}
+				} while (result.isOverflow());
+
+				// Bytes of a character split between reads are decoded together with the next read
+				bytes.compact();
+			}
+			decoder.flush(out);
+			if (out.position() > 0) {
+				parse(handler, chars, 0, out.position());
+			}
+		}
+	}
+
 	@TODO(note = "1. Better XML errors detection. 2. Add XML comments handling. " +
 			"3. Character overflow detection i.e. limit max number of characters for each entity.")
 	public final void parse(SimpleHandler handler, char[] data, int off, int len) {
@@ -17,8 +17,8 @@
  */
 package tigase.xml;
 
+import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
 
@@ -47,8 +47,6 @@ public class XMLFormatter
 			System.exit(1);
 		} // end of if (args.length < 1)
 
-		FileReader file = new FileReader(args[0]);
-		char[] buff = new char[1];
 		SimpleParser parser = new SimpleParser();
 		XMLFormatter formatter = null;
 		if (args.length == 2) {
@@ -56,11 +54,7 @@ public class XMLFormatter
 		} else {
 			formatter = new XMLFormatter(System.out);
 		} // end of if (args.length == 2) else
-		int result = -1;
-		while ((result = file.read(buff)) != -1) {
-			parser.parse(formatter, buff, 0, result);
-		}
-		file.close();
+		parser.parse(formatter, new File(args[0]));
 		formatter.outputExtraData("");
 		formatter = null;
 	}
@@ -17,7 +17,7 @@
  */
 package tigase.xml;
 
-import java.io.FileReader;
+import java.io.File;
 import java.util.Queue;
 
 /**
@@ -50,17 +50,10 @@ public abstract class XMLUtils {
 			System.exit(1);
 		}    // end of if (args.length < 1)
 
-		FileReader file = new FileReader(args[0]);
-		char[] buff = new char[16 * 1024];
 		SimpleParser parser = new SimpleParser();
 		DomBuilderHandler dombuilder = new DomBuilderHandler();
-		int result = -1;
 
-		while ((result = file.read(buff)) != -1) {
-			parser.parse(dombuilder, buff, 0, result);
-		}
-
-		file.close();
+		parser.parse(dombuilder, new File(args[0]));
 
 		Queue<Element> results = dombuilder.getParsedElements();
 
@@ -18,13 +18,16 @@
 package tigase.xml.db;
 
 import tigase.xml.Element;
+import tigase.xml.XMLUtils;
 import tigase.xml.XMLNodeIfc;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 /**
@@ -55,8 +58,42 @@ public class DBElement
 
 	public static final String VALUE = "value";
 
+	private static final Object NO_VALUE = new Object();
+
 	public boolean removed = false;
 
+	/**
+	 * Index of entries of this node by key, built on first use. Like the rest of the element it may be changed only by
+	 * one thread at a time, but it is safe to be read concurrently when it is not changed.
+	 */
+	private volatile Map<String, DBElement> entriesIndex = null;
+
+	/** Index of subnodes of this node by node name, built on first use */
+	private volatile Map<String, DBElement> subnodesIndex = null;
+
+	/**
+	 * Version of subnode paths under this element, increased when any subnode under this element is removed, so
+	 * paths resolved before are not used any more
+	 */
+	private volatile int pathsVersion = 0;
+
+	/**
+	 * Cached formatted text of this element, written by {@link #writeFormated(Appendable, int, int, boolean)} and
+	 * cleared when this element or any of its descendants is changed by methods of this class
+	 */
+	private String formated = null;
+	private int formatedIndent = 0;
+	private int formatedStep = 0;
+
+	/** Element to which this element has been added as a child */
+	private DBElement parent = null;
+
+	/**
+	 * Decoded value of the entry element, set when the entry is set or decoded on first access. {@link #NO_VALUE} marks
+	 * value which can not be decoded.
+	 */
+	private volatile Object entryValue = null;
+
 	public DBElement(String argName) {
 		super(argName);
 	}
@@ -72,95 +109,252 @@ public class DBElement
 	public final String formatedString(int indent, int step) {
 		StringBuilder result = new StringBuilder();
 
-		result.append("\n");
-		for (int i = 0; i < indent; i++) {
-			result.append(" ");
+		try {
+			writeFormated(result, indent, step);
+		} catch (IOException e) {
+
+			// StringBuilder doesn't throw IOException
+			throw new IllegalStateException(e);
 		}
-		result.append("<" + name);
-		if (attributes != null) {
-			for (String key : attributes.keySet()) {
-				result.append(" " + key + "=\"" + attributes.get(key) + "\"");
-			}    // end of for ()
-		}      // end of if (attributes != null)
 
-		String childrenStr = childrenFormatedString(indent + step, step);
+		return result.toString();
+	}
+
+	public final String childrenFormatedString(int indent, int step) {
+		StringBuilder result = new StringBuilder();
+
+		try {
+			writeChildrenFormated(result, indent, step);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		return result.toString();
+	}
+
+	/**
+	 * Writes formatted element and all its children directly to the output, so the text of the whole tree is never
+	 * kept in memory. Character data is trimmed and whitespace only character data is skipped.
+	 *
+	 * @param out output to which element is written
+	 * @param indent indentation of this element
+	 * @param step indentation step of each children level
+	 *
+	 * @throws IOException when output can not be written
+	 */
+	public final void writeFormated(Appendable out, int indent, int step) throws IOException {
+		writeFormated(out, indent, step, false);
+	}
+
+	/**
+	 * Writes formatted element and all its children directly to the output. If requested, formatted text of each
+	 * child element is cached and reused by following calls until the child or any of its descendants is changed, so
+	 * writing a large tree in which only a few subtrees changed costs only formatting of the changed subtrees. Only
+	 * changes made by methods of this class are tracked.
+	 *
+	 * @param out output to which element is written
+	 * @param indent indentation of this element
+	 * @param step indentation step of each children level
+	 * @param cacheChildren whether text of the children should be cached
+	 *
+	 * @throws IOException when output can not be written
+	 */
+	public final void writeFormated(Appendable out, int indent, int step, boolean cacheChildren) throws IOException {
 		String cdata = getCData();
 
-		if ((cdata != null) || (childrenStr.length() > 0)) {
-			result.append(">");
+		if (cdata != null) {
+			cdata = cdata.trim();
+			if (cdata.isEmpty()) {
+				cdata = null;
+			}
+		}
+
+		boolean empty = (cdata == null) && !hasElementChildren();
+
+		writeStartTag(out, indent, empty);
+		if (!empty) {
 			if (cdata != null) {
-				result.append(cdata.trim());
+				out.append(cdata);
 			}    // end of if (cdata != null)
-			result.append(childrenStr);
-			result.append("\n");
-			for (int i = 0; i < indent; i++) {
-				result.append(" ");
-			}
-			result.append("</" + name + ">");
-		} else {
-			result.append("/>");
+			writeChildrenFormated(out, indent + step, step, cacheChildren);
+			writeEndTag(out, indent);
 		}
+	}
 
-		return result.toString();
+	/**
+	 * Writes formatted start tag of this element, closed as an empty element if requested
+	 */
+	final void writeStartTag(Appendable out, int indent, boolean empty) throws IOException {
+		out.append('\n');
+		for (int i = 0; i < indent; i++) {
+			out.append(' ');
+		}
+		out.append('<').append(name);
+		if (attributes != null) {
+			for (String key : attributes.keySet()) {
+				out.append(' ').append(key).append("=\"").append(XMLUtils.escape(attributes.get(key))).append('"');
+			}    // end of for ()
+		}      // end of if (attributes != null)
+		out.append(empty ? "/>" : ">");
 	}
 
-	public final String childrenFormatedString(int indent, int step) {
-		StringBuilder result = new StringBuilder();
+	final void writeEndTag(Appendable out, int indent) throws IOException {
+		out.append('\n');
+		for (int i = 0; i < indent; i++) {
+			out.append(' ');
+		}
+		out.append("</").append(name).append('>');
+	}
 
+	private void writeChildrenFormated(Appendable out, int indent, int step) throws IOException {
+		writeChildrenFormated(out, indent, step, false);
+	}
+
+	private void writeChildrenFormated(Appendable out, int indent, int step, boolean cache) throws IOException {
 		if (children != null) {
 			synchronized (children) {
 				for (XMLNodeIfc child : children) {
 					if (child instanceof DBElement) {
-						result.append(((DBElement) child).formatedString(indent, step));
-					} else {
-						result.append(child.toString());
+						if (((DBElement) child).removed) {
+
+							// Removed but not purged yet
+							continue;
+						}
+						if (cache) {
+							((DBElement) child).writeCachedFormated(out, indent, step);
+						} else {
+							((DBElement) child).writeFormated(out, indent, step);
+						}
+					} else if (child instanceof Element) {
+						out.append(child.toString());
 					}
+
+					// Character data has been already written by the parent element
 				}    // end of for ()
 			}
 		}        // end of if (child != null)
+	}
 
-		return result.toString();
+	/**
+	 * Writes formatted element reusing its cached text if the element has not been changed since it was cached
+	 */
+	final void writeCachedFormated(Appendable out, int indent, int step) throws IOException {
+		String text = formated;
+
+		if ((text == null) || (formatedIndent != indent) || (formatedStep != step)) {
+			text = formatedString(indent, step);
+			formatedIndent = indent;
+			formatedStep = step;
+			formated = text;
+		}
+		out.append(text);
 	}
 
-	public final DBElement getSubnode(String name) {
+	/**
+	 * Marks this element and all its ancestors as changed, so their cached formatted text is not used any more
+	 */
+	private void changed() {
+		for (DBElement elem = this; elem != null; elem = elem.parent) {
+			elem.formated = null;
+		}
+	}
+
+	/**
+	 * Invalidates paths resolved by this element and all its ancestors, as any of them may lead to a removed subnode
+	 */
+	private void pathsChanged() {
+		for (DBElement elem = this; elem != null; elem = elem.parent) {
+			elem.pathsVersion++;
+		}
+	}
+
+	/**
+	 * Returns version of subnode paths under this element, which is changed whenever any subnode under it is removed
+	 *
+	 * @return version of subnode paths
+	 */
+	final int getPathsVersion() {
+		return pathsVersion;
+	}
+
+	/**
+	 * Removes all children marked as removed in a single pass
+	 */
+	final void purgeRemoved() {
 		if (children == null) {
-			return null;
-		}    // end of if (children == null)
-		synchronized (children) {
-			for (XMLNodeIfc el : children) {
-				if (el instanceof Element) {
-					Element elem = (Element) el;
+			return;
+		}
+		if (children.removeIf(child -> (child instanceof DBElement) && ((DBElement) child).removed)) {
+			childrenChanged();
+			changed();
+			pathsChanged();
+		}
+	}
+
+	@Override
+	public void addChild(XMLNodeIfc<?> child) {
+		super.addChild(child);
+		if (child instanceof DBElement) {
+			((DBElement) child).parent = this;
+		}
+	}
 
-					if (elem.getName().equals(NODE) && elem.getAttributeStaticStr(NAME).equals(name)) {
-						return (DBElement) elem;
-					}    //
+	private boolean hasElementChildren() {
+		if (children != null) {
+			for (XMLNodeIfc<?> child : children) {
+				if (child instanceof Element) {
+					return true;
 				}
-			}        // end of for (DBElement node : children)
+			}
 		}
 
-		return null;
+		return false;
+	}
+
+	@Override
+	public DBElement clone() {
+		DBElement result = (DBElement) super.clone();
+
+		// Indexes refer to children of this element, not to the cloned ones
+		result.entriesIndex = null;
+		result.subnodesIndex = null;
+		result.parent = null;
+		if (result.children != null) {
+			for (XMLNodeIfc<?> child : result.children) {
+				if (child instanceof DBElement) {
+					((DBElement) child).parent = result;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	public final DBElement getSubnode(String name) {
+		return getSubnodesIndex().get(name);
 	}
 
 	public final String[] getSubnodes() {
-		if ((children == null) || (children.size() == 1)) {
+		Map<String, DBElement> subnodes = getSubnodesIndex();
+
+		if (subnodes.isEmpty()) {
 			return null;
-		}    // end of if (children == null)
+		}    // end of if (subnodes.isEmpty())
 
-		// Minus <map/> element
-		String[] result = new String[children.size() - 1];
+		String[] result = new String[subnodes.size()];
 
 		synchronized (children) {
 			int idx = 0;
 
 			for (XMLNodeIfc el : children) {
-				if (el instanceof Element) {
-					Element elem = (Element) el;
+				if (el instanceof DBElement) {
+					String name = ((DBElement) el).getAttributeStaticStr(NAME);
 
-					if (elem.getName().equals(NODE)) {
-						result[idx++] = elem.getAttributeStaticStr(NAME);
-					}    //
+					if (subnodes.get(name) == el) {
+						result[idx++] = name;
+					}
 				}
-			}        // end of for (DBElement node : children)
+			}        // end of for (XMLNodeIfc el : children)
 		}
 
 		return result;
@@ -194,7 +388,10 @@ public class DBElement
 		if ((parent != null) && (node != null)) {
 
 			// boolean res = parent.removeChild(node);
-			parent.removeChild(node);
+			parent.removeChildInstance(node);
+			parent.getSubnodesIndex().remove(node.getAttributeStaticStr(NAME), node);
+			parent.changed();
+			parent.pathsChanged();
 		}    // end of if (parent != null && node != null)
 	}
 
@@ -243,64 +440,46 @@ public class DBElement
 
 		node.addChild(new DBElement(MAP));
 		addChild(node);
+		getSubnodesIndex().putIfAbsent(name, node);
+		changed();
 
 		return node;
 	}
 
 	public final DBElement findEntry(String key) {
-		DBElement result = null;
-		List<Element> entries = getChild(MAP).getChildren();
-
-		if (entries != null) {
-			synchronized (entries) {
-				for (Element elem : entries) {
-					if (elem.getAttributeStaticStr(KEY).equals(key)) {
-						result = (DBElement) elem;
-
-						break;
-					}    //
-				}      // end of for (DBElement node : children)
-			}
-		}
-
-		return result;
+		return getEntriesIndex().get(key);
 	}
 
 	public final void removeEntry(String key) {
-		List<Element> entries = getChild(MAP).getChildren();
-
-		if (entries != null) {
-			synchronized (entries) {
-				Element toRemove = null;
-				for (ListIterator<Element> it = entries.listIterator(); it.hasNext(); ) {
-					Element el = it.next();
-					if (el.getAttributeStaticStr(KEY).equals(key)) {
-						toRemove = el;
-
-						break;
-					}    //
-				}      // end of for (DBElement node : children)
-				if (toRemove != null) {
-					getChild(MAP).removeChild(toRemove);
-				}
-			}
+		DBElement entry = getEntriesIndex().remove(key);
+
+		if (entry != null) {
+			getChild(MAP).removeChildInstance(entry);
+			changed();
 		}
 	}
 
 	public final String[] getEntryKeys() {
-		List<Element> entries = getChild(MAP).getChildren();
+		DBElement map = (DBElement) getChild(MAP);
 
-		if (entries != null) {
+		if (map.children != null) {
+			Map<String, DBElement> entries = getEntriesIndex();
 			String[] result = null;
 
-			synchronized (entries) {
+			synchronized (map.children) {
 				result = new String[entries.size()];
 
 				int cnt = 0;
 
-				for (Element dbe : entries) {
-					result[cnt++] = dbe.getAttributeStaticStr(KEY);
-				}    // end of for (DBElement dbe : entries)
+				for (XMLNodeIfc<?> dbe : map.children) {
+					if (dbe instanceof DBElement) {
+						String key = ((DBElement) dbe).getAttributeStaticStr(KEY);
+
+						if (entries.get(key) == dbe) {
+							result[cnt++] = key;
+						}
+					}
+				}    // end of for (XMLNodeIfc dbe : map.children)
 			}
 
 			return result;
@@ -315,20 +494,36 @@ public class DBElement
 		if (result == null) {
 			result = new DBElement(ENTRY, KEY, key);
 			getChild(MAP).addChild(result);
+			getEntriesIndex().put(key, result);
+			changed();
 		}    // end of if (result == null)
 
 		return result;
 	}
 
+	/**
+	 * Replaces entry with the same key by the given entry element, used when changes are replayed from the journal.
+	 *
+	 * @param entry entry element
+	 */
+	final void replaceEntry(DBElement entry) {
+		removeEntry(entry.getAttributeStaticStr(KEY));
+		getChild(MAP).addChild(entry);
+		getEntriesIndex().put(entry.getAttributeStaticStr(KEY), entry);
+		changed();
+	}
+
 	public final void setEntry(String key, Object value) {
 		Types.DataType type = Types.DataType.valueof(value.getClass().getSimpleName());
 		DBElement entry = getEntry(key);
 
 		entry.setAttribute(TYPE, type.toString());
 		if (value.getClass().isArray()) {
-			if (entry.getChildren() != null) {
-				entry.getChildren().clear();
-			}      // end of if (entry.getChildren() != null)
+
+			// getChildren() returns a copy, items have to be removed from the element itself
+			entry.children = null;
+			entry.childrenChanged();
+			entry.removeAttribute(VALUE);
 			switch (type) {
 				case INTEGER_ARR:
 					for (int val : (int[]) value) {
@@ -337,6 +532,13 @@ public class DBElement
 
 					break;
 
+				case LONG_ARR:
+					for (long val : (long[]) value) {
+						entry.addChild(new DBElement("item", VALUE, encode(val)));
+					}    // end of for (String val : values)
+
+					break;
+
 				case DOUBLE_ARR:
 					for (double val : (double[]) value) {
 						entry.addChild(new DBElement("item", VALUE, encode(val)));
@@ -360,8 +562,43 @@ public class DBElement
 			}      // end of switch (type)
 		}        // end of if (value.getClass().isArray())
 		else {
+			entry.children = null;
+			entry.childrenChanged();
 			entry.setAttribute(VALUE, encode(value));
 		}        // end of if (value.getClass().isArray()) else
+		entry.entryValue = cachedValue(type, value);
+		changed();
+	}
+
+	public final void setEntry(String key, int value) {
+		setEntry(key, Types.DataType.INTEGER, Integer.toString(value), Integer.valueOf(value));
+	}
+
+	public final void setEntry(String key, long value) {
+		setEntry(key, Types.DataType.LONG, Long.toString(value), Long.valueOf(value));
+	}
+
+	public final void setEntry(String key, double value) {
+		setEntry(key, Types.DataType.DOUBLE, Double.toString(value), Double.valueOf(value));
+	}
+
+	public final void setEntry(String key, boolean value) {
+		setEntry(key, Types.DataType.BOOLEAN, Boolean.toString(value), Boolean.valueOf(value));
+	}
+
+	/**
+	 * Sets value of a primitive type. String form of such values doesn't need to be <em>URL</em> encoded, the value
+	 * itself is kept only as cached decoded value.
+	 */
+	private void setEntry(String key, Types.DataType type, String stored, Object value) {
+		DBElement entry = getEntry(key);
+
+		entry.setAttribute(TYPE, type.toString());
+		entry.children = null;
+		entry.childrenChanged();
+		entry.setAttribute(VALUE, stored);
+		entry.entryValue = value;
+		changed();
 	}
 
 	public final String getEntryStringValue(String key, String def) {
@@ -369,63 +606,131 @@ public class DBElement
 	}
 
 	public final String[] getEntryStringArrValue(String key, String[] def) {
-		Object result = getEntryValue(key, def);
 		DBElement entry = findEntry(key);
 
 		if (entry == null) {
 			return def;
 		}
 
-		Types.DataType type = Types.DataType.valueof(entry.getAttributeStaticStr(TYPE));
-
-		switch (type) {
-			case STRING_ARR:
-				break;
-
-			case STRING:
-			default:
-				result = new String[]{result.toString()};
+		Object result = entry.getValue();
 
-				break;
-		}    // end of switch (type)
+		if (result == null) {
+			return def;
+		}
+		if (result instanceof String[]) {
+			return ((String[]) result).clone();
+		}
 
-		return (String[]) result;
+		return new String[]{result.toString()};
 	}
 
 	public final int getEntryIntValue(String key, int def) {
-		return ((Integer) getEntryValue(key, Integer.valueOf(def))).intValue();
+		Object result = findValue(key);
+
+		return (result instanceof Number) ? ((Number) result).intValue() : def;
 	}
 
 	public final int[] getEntryIntArrValue(String key, int[] def) {
 		return (int[]) getEntryValue(key, def);
 	}
 
+	public final long getEntryLongValue(String key, long def) {
+		Object result = findValue(key);
+
+		return (result instanceof Number) ? ((Number) result).longValue() : def;
+	}
+
+	public final long[] getEntryLongArrValue(String key, long[] def) {
+		return (long[]) getEntryValue(key, def);
+	}
+
 	public final double getEntryDoubleValue(String key, double def) {
-		return ((Double) getEntryValue(key, new Double(def))).doubleValue();
+		Object result = findValue(key);
+
+		return (result instanceof Number) ? ((Number) result).doubleValue() : def;
 	}
 
 	public final double[] getEntryDoubleArrValue(String key, double[] def) {
 		return (double[]) getEntryValue(key, def);
 	}
 
+	public final boolean getEntryBooleanValue(String key, boolean def) {
+		Object result = findValue(key);
+
+		return (result instanceof Boolean) ? ((Boolean) result).booleanValue() : def;
+	}
+
+	public final boolean[] getEntryBooleanArrValue(String key, boolean[] def) {
+		return (boolean[]) getEntryValue(key, def);
+	}
+
+	/**
+	 * Returns value of the entry decoded to the type with which it was stored. Value is decoded only once, on first
+	 * access after loading or when it is set, later calls return cached value. Arrays are returned as copies so
+	 * changing them does not affect the cached value.
+	 *
+	 * @param key entry key
+	 * @param def value returned if there is no such entry or its value can not be decoded
+	 *
+	 * @return decoded value of the entry
+	 */
 	public final Object getEntryValue(String key, Object def) {
+		Object result = findValue(key);
+
+		return (result != null) ? copyValue(result) : def;
+	}
+
+	/**
+	 * Returns cached decoded value of the entry without copying it, so it must not be exposed to callers if it is an
+	 * array.
+	 */
+	private Object findValue(String key) {
 		DBElement entry = findEntry(key);
 
-		if (entry == null) {
-			return def;
+		return (entry != null) ? entry.getValue() : null;
+	}
+
+	/**
+	 * Returns cached decoded value of this entry element, decoding it on first access.
+	 *
+	 * @return decoded value or <code>null</code> if the value can not be decoded
+	 */
+	Object getValue() {
+		Object result = entryValue;
+
+		if (result == null) {
+			result = decodeValue();
+			entryValue = (result != null) ? result : NO_VALUE;
 		}
 
-		Types.DataType type = Types.DataType.valueof(entry.getAttributeStaticStr(TYPE));
-		Object result = def;
-		String[] tmp_s = getEntryValues(key);
+		return (result != NO_VALUE) ? result : null;
+	}
+
+	private Object decodeValue() {
+		Types.DataType type = Types.DataType.valueof(getAttributeStaticStr(TYPE));
+		String[] tmp_s = null;
 		int idx = -1;
 
+		switch (type) {
+			case INTEGER_ARR:
+			case LONG_ARR:
+			case STRING_ARR:
+			case DOUBLE_ARR:
+			case BOOLEAN_ARR:
+				tmp_s = getItemValues();
+				if (tmp_s == null) {
+					return null;
+				}
+
+				break;
+
+			default:
+				break;
+		}    // end of switch (type)
 		try {
 			switch (type) {
 				case INTEGER:
-					result = Integer.decode(entry.getAttributeStaticStr(VALUE));
-
-					break;
+					return Integer.decode(getAttributeStaticStr(VALUE));
 
 				case INTEGER_ARR:
 					int[] tmp_i = new int[tmp_s.length];
@@ -433,14 +738,11 @@ public class DBElement
 					for (String tmp : tmp_s) {
 						tmp_i[++idx] = Integer.decode(tmp).intValue();
 					}    // end of for (String tmp : tmp_s)
-					result = tmp_i;
 
-					break;
+					return tmp_i;
 
 				case LONG:
-					result = Long.decode(entry.getAttributeStaticStr(VALUE));
-
-					break;
+					return Long.decode(getAttributeStaticStr(VALUE));
 
 				case LONG_ARR:
 					long[] tmp_l = new long[tmp_s.length];
@@ -448,19 +750,14 @@ public class DBElement
 					for (String tmp : tmp_s) {
 						tmp_l[++idx] = Long.decode(tmp).longValue();
 					}    // end of for (String tmp : tmp_s)
-					result = tmp_l;
 
-					break;
+					return tmp_l;
 
 				case STRING_ARR:
-					result = tmp_s;
-
-					break;
+					return tmp_s;
 
 				case DOUBLE:
-					result = new Double(Double.parseDouble(entry.getAttributeStaticStr(VALUE)));
-
-					break;
+					return Double.valueOf(getAttributeStaticStr(VALUE));
 
 				case DOUBLE_ARR:
 					double[] tmp_f = new double[tmp_s.length];
@@ -468,14 +765,11 @@ public class DBElement
 					for (String tmp : tmp_s) {
 						tmp_f[++idx] = Double.parseDouble(tmp);
 					}    // end of for (String tmp : tmp_s)
-					result = tmp_f;
 
-					break;
+					return tmp_f;
 
 				case BOOLEAN:
-					result = Boolean.valueOf(parseBool(entry.getAttributeStaticStr(VALUE)));
-
-					break;
+					return Boolean.valueOf(parseBool(getAttributeStaticStr(VALUE)));
 
 				case BOOLEAN_ARR:
 					boolean[] tmp_b = new boolean[tmp_s.length];
@@ -483,22 +777,62 @@ public class DBElement
 					for (String tmp : tmp_s) {
 						tmp_b[++idx] = parseBool(tmp);
 					}    // end of for (String tmp : tmp_s)
-					result = tmp_b;
 
-					break;
+					return tmp_b;
 
 				case STRING:
 				default:
-					result = decode(entry.getAttributeStaticStr(VALUE));
-
-					break;
+					return decode(getAttributeStaticStr(VALUE));
 			}      // end of switch (type)
 		}        // end of try
 		catch (NullPointerException e) {
-			result = def;
+			return null;
 		}        // end of try-catch
+	}
 
-		return result;
+	/**
+	 * Returns value which would be decoded from the stored form of the given value, or <code>null</code> if it has to
+	 * be decoded on first access.
+	 */
+	private static Object cachedValue(Types.DataType type, Object value) {
+		switch (type) {
+			case INTEGER:
+			case LONG:
+			case DOUBLE:
+			case BOOLEAN:
+			case STRING:
+				return value;
+
+			case INTEGER_ARR:
+			case LONG_ARR:
+			case DOUBLE_ARR:
+			case BOOLEAN_ARR:
+			case STRING_ARR:
+				return copyValue(value);
+
+			default:
+				return value.getClass().isArray() ? null : value.toString();
+		}    // end of switch (type)
+	}
+
+	private static Object copyValue(Object value) {
+		if (value instanceof int[]) {
+			return ((int[]) value).clone();
+		}
+		if (value instanceof long[]) {
+			return ((long[]) value).clone();
+		}
+		if (value instanceof double[]) {
+			return ((double[]) value).clone();
+		}
+		if (value instanceof boolean[]) {
+			return ((boolean[]) value).clone();
+		}
+		if (value instanceof String[]) {
+			return ((String[]) value).clone();
+		}
+
+		return value;
 	}
 
 	private String encode(final Object source) {
@@ -522,23 +856,65 @@ public class DBElement
 				(val.equalsIgnoreCase("yes") || val.equalsIgnoreCase("true") || val.equalsIgnoreCase("on"));
 	}
 
-	private final String[] getEntryValues(String key) {
-		Element entry = findEntry(key);
+	private Map<String, DBElement> getEntriesIndex() {
+		Map<String, DBElement> index = entriesIndex;
 
-		if (entry != null) {
-			List<Element> items = entry.getChildren();
+		if (index == null) {
+			index = new HashMap<String, DBElement>();
 
-			if (items != null) {
-				String[] result = new String[items.size()];
-				int cnt = 0;
+			Element map = getChild(MAP);
+
+			if (map != null) {
+				for (Iterator<Element> it = map.childrenIterator(); it.hasNext(); ) {
+					Element entry = it.next();
+					String key = entry.getAttributeStaticStr(KEY);
+
+					// The first entry with the key is used like when entries were searched sequentially
+					if (key != null && !index.containsKey(key)) {
+						index.put(key, (DBElement) entry);
+					}
+				}
+			}
+			entriesIndex = index;
+		}
+
+		return index;
+	}
 
-				for (Element item : items) {
-					result[cnt++] = decode(item.getAttributeStaticStr(VALUE));
-				}    // end of for (DBElement dbe : entries)
+	private Map<String, DBElement> getSubnodesIndex() {
+		Map<String, DBElement> index = subnodesIndex;
 
-				return result;
-			}      // end of if (items != null)
-		}        // end of if (entry != null)
+		if (index == null) {
+			index = new HashMap<String, DBElement>();
+			if (children != null) {
+				for (XMLNodeIfc<?> child : children) {
+					if (child instanceof DBElement) {
+						DBElement elem = (DBElement) child;
+						String name = elem.getAttributeStaticStr(NAME);
+
+						if ((elem.getName() == NODE) && (name != null) && !index.containsKey(name)) {
+							index.put(name, elem);
+						}
+					}
+				}
+			}
+			subnodesIndex = index;
+		}
+
+		return index;
+	}
+
+	private String[] getItemValues() {
+		if (children != null) {
+			String[] result = new String[getChildrenCount()];
+			int cnt = 0;
+
+			for (Iterator<Element> it = childrenIterator(); it.hasNext(); ) {
+				result[cnt++] = decode(it.next().getAttributeStaticStr(VALUE));
+			}    // end of for (Iterator<Element> it = childrenIterator(); it.hasNext(); )
+
+			return result;
+		}      // end of if (children != null)
 
 		return null;
 	}
@@ -19,6 +19,7 @@ package tigase.xml.db;
 
 import tigase.xml.Element;
 import tigase.xml.ElementFactory;
+import tigase.xml.XMLUtils;
 
 /**
  * <code>DBElementFactory</code> is implementation of factory design pattern required by <em>XML</em> <em>DOM</em>
@@ -46,7 +47,8 @@ public class DBElementFactory
 	}
 
 	/**
-	 * Describe <code>elementInstance</code> method here.
+	 * Describe <code>elementInstance</code> method here. Attribute values are unescaped, as database keeps them in
+	 * their plain form and escapes them only when they are written.
 	 *
 	 * @param name a <code>String</code> value
 	 * @param cdata a <code>String</code> value
@@ -57,6 +59,14 @@ public class DBElementFactory
 	 */
 	public Element elementInstance(final String name, final String cdata, final StringBuilder[] attnames,
 								   final StringBuilder[] attvalues) {
+		if (attvalues != null) {
+			for (int i = 0; i < attvalues.length; i++) {
+				if ((attvalues[i] != null) && (attvalues[i].indexOf("&") >= 0)) {
+					attvalues[i] = new StringBuilder(XMLUtils.unescape(attvalues[i].toString()));
+				}
+			}
+		}
+
 		return new DBElement(name, cdata, attnames, attvalues);
 	}
 
@@ -0,0 +1,601 @@
+/*
+ * Tigase XML Tools - Tigase XML Tools
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xml.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/**
+ * <code>ShardedXMLDB</code> partitions node1s by hash of their names between a number of separate databases
+ * (shards), each kept in its own file named after the database file with <code>.shard</code> suffix and shard number.
+ * Every shard has its own lock, index, journal and dirty tracking, so changes of node1s in different shards don't
+ * block each other and only modified shards are written to disk. Number of shards is fixed when database is created
+ * and the same number must be used when it is loaded. <p>All operations of <code>XMLDB</code> are supported and
+ * behave the same, apart from batches which modify many shards: they are applied to each shard separately, so they
+ * are atomic per shard only.</p>
+ */
+public class ShardedXMLDB
+		extends XMLDB {
+
+	private static final String SHARD_FILE_SUFFIX = ".shard";
+
+	private final String dbFile;
+	private final XMLDB[] shards;
+
+	/**
+	 * Factory method creating and setting up sharded database
+	 *
+	 * @param db_file indicates path to the file on disk from which names of shard files are created; if parameter
+	 * starts with "memory://" then memory mode (without actual file usage) is enabled
+	 * @param root_name name of the root element
+	 * @param node1_name name of the node
+	 * @param shards number of shards
+	 *
+	 * @return ShardedXMLDB object
+	 */
+	public static ShardedXMLDB createDB(String db_file, String root_name, String node1_name, int shards) {
+		XMLDB[] dbs = newShards(shards);
+
+		for (int i = 0; i < shards; i++) {
+			dbs[i] = XMLDB.createDB(getShardFileName(db_file, i), root_name, node1_name);
+		}
+
+		return new ShardedXMLDB(db_file, dbs);
+	}
+
+	private static String getShardFileName(String db_file, int shard) {
+		return db_file + SHARD_FILE_SUFFIX + shard;
+	}
+
+	private static XMLDB[] newShards(int shards) {
+		if (shards < 1) {
+			throw new IllegalArgumentException("Number of shards must be positive: " + shards);
+		}
+
+		return new XMLDB[shards];
+	}
+
+	private static XMLDB[] loadShards(String db_file, int shards) throws IOException, XMLDBException {
+		XMLDB[] dbs = newShards(shards);
+
+		for (int i = 0; i < shards; i++) {
+			dbs[i] = new XMLDB(getShardFileName(db_file, i));
+		}
+
+		return dbs;
+	}
+
+	/**
+	 * Loads sharded database
+	 *
+	 * @param db_file indicates path to the file on disk from which names of shard files are created; if parameter
+	 * starts with "memory://" then memory mode (without actual file usage) is enabled
+	 * @param shards number of shards, the same as used when database was created
+	 *
+	 * @throws IOException when the file of any shard doesn't exist
+	 * @throws XMLDBException when there is a problem with XML DB
+	 */
+	public ShardedXMLDB(String db_file, int shards) throws IOException, XMLDBException {
+		this(db_file, loadShards(db_file, shards));
+	}
+
+	private ShardedXMLDB(String db_file, XMLDB[] shards) {
+		this.dbFile = db_file;
+		this.shards = shards;
+	}
+
+	/**
+	 * Returns number of shards
+	 *
+	 * @return number of shards
+	 */
+	public int getShardsCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Returns shard keeping the node
+	 *
+	 * @param node1_id name of the node
+	 *
+	 * @return database of the shard
+	 */
+	public XMLDB getShard(String node1_id) {
+		return shards[getShardIndex(node1_id)];
+	}
+
+	private int getShardIndex(String node1_id) {
+		return (node1_id.hashCode() & Integer.MAX_VALUE) % shards.length;
+	}
+
+	@Override
+	public boolean isBinary() {
+		return shards[0].isBinary();
+	}
+
+	@Override
+	public String getDBFileName() {
+		return dbFile;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+
+		for (XMLDB shard : shards) {
+			result.append(shard.toString());
+		}
+
+		return result.toString();
+	}
+
+	@Override
+	public long getAllNode1sCount() {
+		long result = 0;
+
+		for (XMLDB shard : shards) {
+			result += shard.getAllNode1sCount();
+		}
+
+		return result;
+	}
+
+	@Override
+	public List<String> getAllNode1s() {
+		List<String> result = new ArrayList<String>();
+
+		for (XMLDB shard : shards) {
+			result.addAll(shard.getAllNode1s());
+		}
+
+		return result;
+	}
+
+	@Override
+	public List<String> getAllNode1sSorted() {
+		List<String> result = getAllNode1s();
+
+		Collections.sort(result);
+
+		return result;
+	}
+
+	@Override
+	public Iterator<String> iterateNode1s(String from, String to) {
+		List<Iterator<String>> iterators = new ArrayList<Iterator<String>>(shards.length);
+
+		for (XMLDB shard : shards) {
+			iterators.add(shard.iterateNode1s(from, to));
+		}
+
+		return new MergingIterator(iterators);
+	}
+
+	@Override
+	public Iterator<String> iterateNode1sWithPrefix(String prefix) {
+		return iterateNode1s(prefix, getPrefixEnd(prefix));
+	}
+
+	@Override
+	public List<String> getNode1sPage(String prefix, String after, int limit) {
+		List<String> result = new ArrayList<String>();
+
+		for (XMLDB shard : shards) {
+			result.addAll(shard.getNode1sPage(prefix, after, limit));
+		}
+		Collections.sort(result);
+
+		return (result.size() > limit) ? new ArrayList<String>(result.subList(0, limit)) : result;
+	}
+
+	@Override
+	public DBElement findNode1(String node1_id) {
+		return getShard(node1_id).findNode1(node1_id);
+	}
+
+	@Override
+	public void addNode1(String node1_id) throws NodeExistsException {
+		getShard(node1_id).addNode1(node1_id);
+	}
+
+	@Override
+	public void removeNode1(String node1_id) throws NodeNotFoundException {
+		getShard(node1_id).removeNode1(node1_id);
+	}
+
+	@Override
+	public void setData(String node1_id, String subnode, String key, Object value) throws NodeNotFoundException {
+		getShard(node1_id).setData(node1_id, subnode, key, value);
+	}
+
+	@Override
+	public void setData(String node1_id, String subnode, String key, int value) throws NodeNotFoundException {
+		getShard(node1_id).setData(node1_id, subnode, key, value);
+	}
+
+	@Override
+	public void setData(String node1_id, String subnode, String key, long value) throws NodeNotFoundException {
+		getShard(node1_id).setData(node1_id, subnode, key, value);
+	}
+
+	@Override
+	public void setData(String node1_id, String subnode, String key, double value) throws NodeNotFoundException {
+		getShard(node1_id).setData(node1_id, subnode, key, value);
+	}
+
+	@Override
+	public void setData(String node1_id, String subnode, String key, boolean value) throws NodeNotFoundException {
+		getShard(node1_id).setData(node1_id, subnode, key, value);
+	}
+
+	@Override
+	public String[] getDataList(String node1_id, String subnode, String key) throws NodeNotFoundException {
+		return getShard(node1_id).getDataList(node1_id, subnode, key);
+	}
+
+	@Override
+	public int[] getDataIntList(String node1_id, String subnode, String key) throws NodeNotFoundException {
+		return getShard(node1_id).getDataIntList(node1_id, subnode, key);
+	}
+
+	@Override
+	public long[] getDataLongList(String node1_id, String subnode, String key) throws NodeNotFoundException {
+		return getShard(node1_id).getDataLongList(node1_id, subnode, key);
+	}
+
+	@Override
+	public double[] getDataDoubleList(String node1_id, String subnode, String key) throws NodeNotFoundException {
+		return getShard(node1_id).getDataDoubleList(node1_id, subnode, key);
+	}
+
+	@Override
+	public boolean[] getDataBooleanList(String node1_id, String subnode, String key) throws NodeNotFoundException {
+		return getShard(node1_id).getDataBooleanList(node1_id, subnode, key);
+	}
+
+	@Override
+	public Object getData(String node1_id, String subnode, String key, Object def) throws NodeNotFoundException {
+		return getShard(node1_id).getData(node1_id, subnode, key, def);
+	}
+
+	@Override
+	public Object findData(String node1_id, String subnode, String key) {
+		return getShard(node1_id).findData(node1_id, subnode, key);
+	}
+
+	@Override
+	public Object[] findDataValues(String node1_id, String subnode, String... keys) {
+		return getShard(node1_id).findDataValues(node1_id, subnode, keys);
+	}
+
+	@Override
+	public int getDataInt(String node1_id, String subnode, String key, int def) throws NodeNotFoundException {
+		return getShard(node1_id).getDataInt(node1_id, subnode, key, def);
+	}
+
+	@Override
+	public long getDataLong(String node1_id, String subnode, String key, long def) throws NodeNotFoundException {
+		return getShard(node1_id).getDataLong(node1_id, subnode, key, def);
+	}
+
+	@Override
+	public double getDataDouble(String node1_id, String subnode, String key, double def) throws NodeNotFoundException {
+		return getShard(node1_id).getDataDouble(node1_id, subnode, key, def);
+	}
+
+	@Override
+	public boolean getDataBoolean(String node1_id, String subnode, String key, boolean def)
+			throws NodeNotFoundException {
+		return getShard(node1_id).getDataBoolean(node1_id, subnode, key, def);
+	}
+
+	@Override
+	public String[] getSubnodes(String node1_id, String subnode) throws NodeNotFoundException {
+		return getShard(node1_id).getSubnodes(node1_id, subnode);
+	}
+
+	@Override
+	public String[] getKeys(String node1_id, String subnode) throws NodeNotFoundException {
+		return getShard(node1_id).getKeys(node1_id, subnode);
+	}
+
+	@Override
+	public void removeData(String node1_id, String subnode, String key) throws NodeNotFoundException {
+		getShard(node1_id).removeData(node1_id, subnode, key);
+	}
+
+	@Override
+	public void removeSubnode(String node1_id, String subnode) throws NodeNotFoundException {
+		getShard(node1_id).removeSubnode(node1_id, subnode);
+	}
+
+	/**
+	 * Applies changes from the batch to each shard separately. In atomic mode existence of all nodes is checked before
+	 * any shard is changed, but changes are atomic only within a shard.
+	 *
+	 * @param batch changes to apply
+	 * @param atomic if <code>true</code> no change is applied when any of the nodes on first level doesn't exist
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 * @throws IllegalArgumentException when any change is invalid, no shard is changed then
+	 */
+	@Override
+	public void apply(XMLDBBatch batch, boolean atomic) throws NodeNotFoundException {
+		XMLDBBatch[] batches = new XMLDBBatch[shards.length];
+
+		for (XMLDBBatch.Operation op : batch.operations) {
+			op.validate();
+			if (atomic && (findNode1(op.node1_id) == null)) {
+				throw new NodeNotFoundException("Node1: " + op.node1_id + " has not been found in db.");
+			}
+
+			int idx = getShardIndex(op.node1_id);
+
+			if (batches[idx] == null) {
+				batches[idx] = new XMLDBBatch();
+			}
+			batches[idx].operations.add(op);
+		}
+
+		NodeNotFoundException notFound = null;
+
+		for (int i = 0; i < shards.length; i++) {
+			if (batches[i] != null) {
+				try {
+					shards[i].apply(batches[i], atomic);
+				} catch (NodeNotFoundException e) {
+					if (notFound == null) {
+						notFound = e;
+					}
+				}
+			}
+		}
+		if (notFound != null) {
+			throw notFound;
+		}
+	}
+
+	@Override
+	public void createIndex(String subnode, String key) {
+		for (XMLDB shard : shards) {
+			shard.createIndex(subnode, key);
+		}
+	}
+
+	@Override
+	public void dropIndex(String subnode, String key) {
+		for (XMLDB shard : shards) {
+			shard.dropIndex(subnode, key);
+		}
+	}
+
+	@Override
+	public boolean isIndexed(String subnode, String key) {
+		return shards[0].isIndexed(subnode, key);
+	}
+
+	@Override
+	public List<String> findNode1s(String subnode, String key, Object value) {
+		List<String> result = new ArrayList<String>();
+
+		for (XMLDB shard : shards) {
+			result.addAll(shard.findNode1s(subnode, key, value));
+		}
+
+		return result;
+	}
+
+	@Override
+	public List<String> findNode1sMatching(String subnode, String key, Predicate<Object> predicate) {
+		List<String> result = new ArrayList<String>();
+
+		for (XMLDB shard : shards) {
+			result.addAll(shard.findNode1sMatching(subnode, key, predicate));
+		}
+
+		return result;
+	}
+
+	@Override
+	DBElement newNode1(String node1_id) {
+		return getShard(node1_id).newNode1(node1_id);
+	}
+
+	/**
+	 * Checks that none of the node1s exists in any shard and adds them to their shards. Write locks of all shards are
+	 * held for the check and the adding, taken always in the order of shards, so node1s added concurrently can't slip
+	 * in between.
+	 *
+	 * @param loaded new node1s by their names
+	 *
+	 * @throws NodeExistsException when any of the node1s already exists, no node1 is added then
+	 */
+	@Override
+	void attachNode1s(Map<String, DBElement> loaded) throws NodeExistsException {
+		List<Map<String, DBElement>> perShard = new ArrayList<Map<String, DBElement>>(shards.length);
+
+		for (int i = 0; i < shards.length; i++) {
+			perShard.add(new LinkedHashMap<String, DBElement>());
+		}
+		for (Map.Entry<String, DBElement> entry : loaded.entrySet()) {
+			perShard.get(getShardIndex(entry.getKey())).put(entry.getKey(), entry.getValue());
+		}
+
+		int locked = 0;
+
+		try {
+			for (; locked < shards.length; locked++) {
+				shards[locked].getLock().writeLock().lock();
+			}
+			for (String node1_id : loaded.keySet()) {
+				if (findNode1(node1_id) != null) {
+					throw new NodeExistsException("Node1: " + node1_id + " already exists.");
+				}
+			}
+			for (int i = 0; i < shards.length; i++) {
+				shards[i].attachNode1s(perShard.get(i));
+			}
+		} finally {
+			while (locked > 0) {
+				shards[--locked].getLock().writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes consistent copy of each shard to its own file, named after the given path the same way as shard files
+	 * are named after the database file, so backup can be loaded with {@link #ShardedXMLDB(String, int)}. Like
+	 * batches, backup is consistent per shard only.
+	 *
+	 * @param path path from which names of backup files of shards are created
+	 *
+	 * @throws IOException when any of the files can not be written
+	 */
+	@Override
+	public void backup(String path) throws IOException {
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].backup(getShardFileName(path, i));
+		}
+	}
+
+	@Override
+	public void sync() throws IOException {
+		for (XMLDB shard : shards) {
+			shard.sync();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		for (XMLDB shard : shards) {
+			shard.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException exception = null;
+
+		for (XMLDB shard : shards) {
+			try {
+				shard.close();
+			} catch (IOException e) {
+				if (exception == null) {
+					exception = e;
+				}
+			}
+		}
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
+	@Override
+	public boolean isDirty() {
+		for (XMLDB shard : shards) {
+			if (shard.isDirty()) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	@Override
+	public void setSaveDelay(long delay, long maxDelay) {
+		for (XMLDB shard : shards) {
+			shard.setSaveDelay(delay, maxDelay);
+		}
+	}
+
+	@Override
+	public boolean isJournalEnabled() {
+		return shards[0].isJournalEnabled();
+	}
+
+	/**
+	 * Journal is kept separately by each shard, so there is no single journal file
+	 *
+	 * @return <code>null</code>
+	 */
+	@Override
+	public String getJournalFileName() {
+		return null;
+	}
+
+	/**
+	 * Merges sorted iterators of all shards into a single sorted iterator
+	 */
+	private static class MergingIterator
+			implements Iterator<String> {
+
+		private final PriorityQueue<PeekingIterator> queue;
+
+		private MergingIterator(List<Iterator<String>> iterators) {
+			queue = new PriorityQueue<PeekingIterator>(Math.max(1, iterators.size()),
+													   (a, b) -> a.next.compareTo(b.next));
+			for (Iterator<String> it : iterators) {
+				if (it.hasNext()) {
+					queue.add(new PeekingIterator(it));
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !queue.isEmpty();
+		}
+
+		@Override
+		public String next() {
+			PeekingIterator it = queue.poll();
+
+			if (it == null) {
+				throw new NoSuchElementException();
+			}
+
+			String result = it.next;
+
+			if (it.iterator.hasNext()) {
+				it.next = it.iterator.next();
+				queue.add(it);
+			}
+
+			return result;
+		}
+	}
+
+	private static class PeekingIterator {
+
+		private final Iterator<String> iterator;
+		private String next;
+
+		private PeekingIterator(Iterator<String> iterator) {
+			this.iterator = iterator;
+			this.next = iterator.next();
+		}
+	}
+}    // ShardedXMLDB
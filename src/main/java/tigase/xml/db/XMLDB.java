@@ -20,14 +20,36 @@ package tigase.xml.db;
 import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
 import tigase.xml.SimpleParser;
+import tigase.xml.XMLUtils;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -66,32 +88,106 @@ import java.util.logging.Logger;
  */
 public class XMLDB {
 
+	public static final String BINARY_PROP_KEY = "tigase.xml.db.binary";
+	public static final String FORMAT_CACHE_PROP_KEY = "tigase.xml.db.format_cache";
+	public static final String JOURNAL_ENABLED_PROP_KEY = "tigase.xml.db.journal";
+	public static final String JOURNAL_MAX_SIZE_PROP_KEY = "tigase.xml.db.journal_max_size";
+	public static final String JOURNAL_SYNC_PROP_KEY = "tigase.xml.db.journal_sync";
+	public static final String PATH_CACHE_SIZE_PROP_KEY = "tigase.xml.db.path_cache_size";
+	public static final String SAVE_DELAY_PROP_KEY = "tigase.xml.db.save_delay";
+	public static final String SAVE_MAX_DELAY_PROP_KEY = "tigase.xml.db.save_max_delay";
+	public static final String SAVER_THREADS_PROP_KEY = "tigase.xml.db.saver_threads";
+	private static final String JOURNAL_FILE_SUFFIX = ".journal";
+	private static final String BROKEN_FILE_SUFFIX = ".broken.";
+	private static final String OLD_FILE_SUFFIX = ".old";
+	private static final String TMP_FILE_SUFFIX = ".tmp";
+	private static final int PURGE_MIN_REMOVED = 64;
+	private static final String ADD_NODE1_REC = "add-node1";
+	private static final String BATCH_REC = "batch";
+	private static final String REMOVE_NODE1_REC = "remove-node1";
+	private static final String REMOVE_REC = "remove";
+	private static final String REMOVE_SUBNODE_REC = "remove-subnode";
+	private static final String SET_REC = "set";
+	private static final String KEY_ATTR = "key";
+	private static final String NODE1_ATTR = "node1";
+	private static final String PATH_ATTR = "path";
 	private static Logger log = Logger.getLogger("tigase.xml.db.XMLDB");
-
-	/** file saver task */
-	private final DBSaver db_saver = new DBSaver();
-	/** DBElementComparator filed */
-	private DBElementComparator comparator = new DBElementComparator();
+	/** executor shared by all databases, performing delayed writes of database files */
+	private static final ScheduledExecutorService saver = createSaver();
+
+	/** binary indicates whether database file is written in binary format instead of XML */
+	private boolean binary = Boolean.getBoolean(BINARY_PROP_KEY);
+	/** closed indicates whether database has been closed and no more writes should be scheduled */
+	private boolean closed = false;
+	/** number of changes made to the database, used to check whether all of them have been written to the file */
+	private volatile long changes = 0;
+	/** time of the first change not written to the file, used to bound delay of the write */
+	private long firstChangeTime = 0;
+	/** time of the last change not written to the file */
+	private long lastChangeTime = 0;
+	/** delay in milliseconds after the last change after which database file is written */
+	private long saveDelay = Long.getLong(SAVE_DELAY_PROP_KEY, 2000);
+	/** monitor guarding scheduling of the database file write */
+	private final Object saveMonitor = new Object();
+	/** number of changes included in the last database file written */
+	private volatile long savedChanges = 0;
+	/** snapshot being written, <code>null</code> if there is none */
+	private volatile Snapshot snapshot = null;
+	/** maximal delay in milliseconds after the first change after which database file is written */
+	private long saveMaxDelay = Long.getLong(SAVE_MAX_DELAY_PROP_KEY, 10000);
+	/** scheduled write of the database file, <code>null</code> if none is scheduled */
+	private ScheduledFuture<?> saveTask = null;
 	/** dbFile filename filed */
 	private String dbFile = "xml_db.xml";
-	/** lock filed */
-	private Lock lock = new ReentrantLock();
+	/** formatCache indicates whether formatted text of each node1 is cached and reused until node1 is changed */
+	private boolean formatCache = Boolean.parseBoolean(System.getProperty(FORMAT_CACHE_PROP_KEY, "true"));
+	/** journal writer, <code>null</code> if journal is not used */
+	private Writer journal = null;
+	/** journalEnabled indicates whether changes should be appended to the journal file */
+	private boolean journalEnabled = Boolean.getBoolean(JOURNAL_ENABLED_PROP_KEY);
+	/** size of the journal in bytes after which database file is rewritten and journal is truncated */
+	private long journalMaxSize = Long.getLong(JOURNAL_MAX_SIZE_PROP_KEY, 16 * 1024 * 1024);
+	/** current size of the journal */
+	private long journalSize = 0;
+	/** journal output stream used to force data to the disk */
+	private FileOutputStream journalStream = null;
+	/** journalSync indicates whether each journal record should be forced to the disk */
+	private boolean journalSync = Boolean.getBoolean(JOURNAL_SYNC_PROP_KEY);
+	/** lock guarding database tree, changes and taking snapshots are made under write lock, reads under read lock */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	/** lock serializing writes of the database file */
+	private final Lock saveLock = new ReentrantLock();
+	/** number of removed node1s which are still kept in the tree */
+	private int removedNode1s = 0;
+	/** secondary indexes of values, maintained under write lock */
+	private final List<XMLDBIndex> indexes = new ArrayList<XMLDBIndex>();
 	/** memoryMode indicates whether XML should be kept only in memory */
 	private boolean memoryMode = false;
+	/** maximal number of paths kept in the cache, 0 disables the cache */
+	private final int pathCacheSize = Integer.getInteger(PATH_CACHE_SIZE_PROP_KEY, 10000);
+	/**
+	 * cache of subnodes resolved from node1 and subnode path, access ordered to evict least recently used paths. Each
+	 * lookup changes the order, so it is guarded by its own monitor as lookups run under the shared read lock.
+	 */
+	private final LinkedHashMap<PathKey, ResolvedPath> pathCache = new LinkedHashMap<PathKey, ResolvedPath>(16, 0.75f,
+																											  true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<PathKey, ResolvedPath> eldest) {
+			return size() > pathCacheSize;
+		}
+	};
 	/** node_name filed */
 	private String node_name = "node";
-	/** nodes filed */
-	private DBElement[] nodes = new DBElement[]{};
-	/** field indicates if nodes were modified */
-	private boolean nodes_modified = true;
+	/** node1 index, maintained by each operation adding or removing node1 */
+	private final ConcurrentHashMap<String, DBElement> node1s = new ConcurrentHashMap<String, DBElement>();
+	/** sorted view of node1 index, created on first use and maintained together with the index since then */
+	private volatile ConcurrentSkipListMap<String, DBElement> sortedNode1s = null;
 	/** root element filed */
 	private DBElement root = null;
 	/** root element name filed */
 	private String root_name = "root";
-	/**
-	 * Used only for searching for given node, do NOT use for any other purpose.
-	 */
-	private DBElement tmp_node = null;
 
 	/**
 	 * Factory method creating and setting up XMLDB
@@ -111,22 +207,33 @@ public class XMLDB {
 		return xmldb;
 	}
 
-	/**
-	 * Creates default XMLDB object, if file modes is enabled then appropriate saver thread is created as well
-	 */
-	private XMLDB() {
-		if (!memoryMode) {
-			Thread thrd = new Thread(db_saver);
+	private static ScheduledExecutorService createSaver() {
+		ThreadFactory factory = r -> {
+			Thread thrd = new Thread(r);
 
 			thrd.setName("XMLDBSaver");
 			thrd.setDaemon(true);
-			thrd.start();
-		}
+
+			return thrd;
+		};
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+				Integer.getInteger(SAVER_THREADS_PROP_KEY, 1), factory);
+
+		executor.setRemoveOnCancelPolicy(true);
+
+		return executor;
 	}
 
 	/**
-	 * Creates XMLDB object with desired filename, if file modes is enabled then appropriate saver thread is created as
-	 * well. For filenames starting with "memory://" memory mode (i.e. without writing to disk) is enabled
+	 * Creates default XMLDB object, database has to be set up with {@link #setupNewDB(String, String, String)} or
+	 * {@link #loadDB()} unless subclass manages data itself
+	 */
+	protected XMLDB() {
+	}
+
+	/**
+	 * Creates XMLDB object with desired filename. For filenames starting with "memory://" memory mode (i.e. without
+	 * writing to disk) is enabled
 	 *
 	 * @param db_file indicates path to the file on disk to/from which write/read; if parameter starts with "memory://"
 	 * then memory mode (without actual file usage) is enabled
@@ -136,21 +243,25 @@ public class XMLDB {
 	 */
 	public XMLDB(String db_file) throws IOException, XMLDBException {
 		dbFile = db_file;
-		tmp_node = new DBElement(node_name);
 		if (db_file.startsWith("memory://")) {
 			memoryMode = true;
 			this.setupNewDB(db_file, root_name, node_name);
 		} else {
-			Thread thrd = new Thread(db_saver);
-
-			thrd.setName("XMLDBSaver" + db_file);
-			thrd.setDaemon(true);
-			thrd.start();
-
 			loadDB();
 		}
 	}
 
+	/**
+	 * Checks whether database file is written in binary format of {@link XMLDBBinary}, which loads much faster. It is
+	 * used when <code>tigase.xml.db.binary</code> system property is set. Format of the file is detected when it is
+	 * loaded.
+	 *
+	 * @return <code>true</code> if binary format is used
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+
 	/**
 	 * Retrieves filename
 	 *
@@ -160,6 +271,13 @@ public class XMLDB {
 		return dbFile;
 	}
 
+	/**
+	 * Formats whole database for diagnostics. It is called from logging inside methods which already hold the database
+	 * lock, so it takes no lock and does not purge removed nodes, which are skipped instead. Text of database changed
+	 * concurrently may be inconsistent.
+	 *
+	 * @return formatted database
+	 */
 	@Override
 	public String toString() {
 		return root != null ? root.formatedString(0, 1) : "";
@@ -170,71 +288,110 @@ public class XMLDB {
 	 *
 	 * @return number of nodes
 	 */
-	public final long getAllNode1sCount() {
-		return root.getChildren().size();
+	public long getAllNode1sCount() {
+		return node1s.size();
 	}
 
 	/**
-	 * Retrieve list of nodes
+	 * Retrieve list of nodes in no particular order
 	 *
 	 * @return list of nodes
 	 */
-	public final List<String> getAllNode1s() {
-		List<Element> children = root.getChildren();
-
-		if (children != null) {
-			List<String> results = new ArrayList<String>(children.size());
+	public List<String> getAllNode1s() {
+		return new ArrayList<String>(node1s.keySet());
+	}
 
-			for (Element child : children) {
-				results.add(child.getAttributeStaticStr(DBElement.NAME));
-			}    // end of for (Element child: children)
+	/**
+	 * Retrieve list of nodes sorted by node name. Sorted view of nodes is created on the first call and maintained
+	 * since then, so databases which are never listed in order don't pay for it.
+	 *
+	 * @return sorted list of nodes
+	 */
+	public List<String> getAllNode1sSorted() {
+		return new ArrayList<String>(getSortedNode1s().keySet());
+	}
 
-			return results;
-		}      // end of if (children != null)
+	/**
+	 * Iterates in order over names of nodes from the given range without copying them. Iterator is weakly consistent:
+	 * it never throws <code>ConcurrentModificationException</code> and reflects some of the changes made after it was
+	 * created.
+	 *
+	 * @param from first name of the range, inclusive, or <code>null</code> to start from the first node
+	 * @param to last name of the range, exclusive, or <code>null</code> to continue to the last node
+	 *
+	 * @return iterator over sorted names of nodes
+	 */
+	public Iterator<String> iterateNode1s(String from, String to) {
+		return Collections.unmodifiableSet(getSortedNode1s(from, true, to).keySet()).iterator();
+	}
 
-		return null;
+	/**
+	 * Iterates in order over names of nodes starting with the prefix, for example all users with JIDs starting with
+	 * the same local part, without copying them. Iterator is weakly consistent.
+	 *
+	 * @param prefix prefix of names of nodes
+	 *
+	 * @return iterator over sorted names of nodes
+	 */
+	public Iterator<String> iterateNode1sWithPrefix(String prefix) {
+		return iterateNode1s(prefix, getPrefixEnd(prefix));
 	}
 
 	/**
-	 * Return Element corresponding to the node name
+	 * Retrieves one page of sorted names of nodes. Next page is retrieved by passing the last name of the previous page
+	 * as <code>after</code>, so pages stay consistent even if nodes are added or removed between calls.
 	 *
-	 * @param node1_id node name
+	 * @param prefix prefix of names of nodes or <code>null</code> for all nodes
+	 * @param after name after which page starts or <code>null</code> for the first page
+	 * @param limit maximal number of names on the page
 	 *
-	 * @return Element corresponding to the node name
+	 * @return sorted list of names of nodes, shorter than limit for the last page
+	 *
+	 * @throws IllegalArgumentException when limit is negative
 	 */
-	public final DBElement findNode1(String node1_id) {
-		DBElement result = null;
+	public List<String> getNode1sPage(String prefix, String after, int limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException("Page limit can not be negative: " + limit);
+		}
 
-		lock.lock();
-		try {
-			tmp_node.setAttribute(DBElement.NAME, node1_id);
+		String from = prefix;
+		boolean inclusive = true;
 
-			int idx = Arrays.binarySearch(nodes, tmp_node, comparator);
-			DBElement dbel = null;
+		if ((after != null) && ((prefix == null) || (after.compareTo(prefix) >= 0))) {
+			from = after;
+			inclusive = false;
+		}
 
-			if (idx >= 0) {
-				dbel = nodes[idx];
-			}      // end of if (idx >= 0)
-			if (nodes_modified && ((idx < 0) || ((dbel != null) && dbel.removed))) {
-				List<Element> children = root.getChildren();
+		List<String> result = new ArrayList<String>(Math.min(limit, 1024));
+		Iterator<String> it = getSortedNode1s(from, inclusive, getPrefixEnd(prefix)).keySet().iterator();
 
-				if (children != null) {
-					nodes = children.toArray(new DBElement[children.size()]);
-					Arrays.sort(nodes, comparator);
-					idx = Arrays.binarySearch(nodes, tmp_node, comparator);
-				}    // end of if (children != null)
-				nodes_modified = false;
-			}      // end of if (idx < 0)
-			if (idx >= 0) {
-				result = nodes[idx];
-			}
-		} finally {
-			lock.unlock();
-		}        // end of try-finally
+		while ((result.size() < limit) && it.hasNext()) {
+			result.add(it.next());
+		}
 
 		return result;
 	}
 
+	/**
+	 * Return Element corresponding to the node name
+	 *
+	 * @param node1_id node name
+	 *
+	 * @return Element corresponding to the node name
+	 */
+	public DBElement findNode1(String node1_id) {
+		return node1s.get(node1_id);
+	}
+
+	/**
+	 * Creates loader adding many new nodes with their data to the database at once
+	 *
+	 * @return new bulk loader
+	 */
+	public XMLDBBulkLoader newBulkLoader() {
+		return new XMLDBBulkLoader(this);
+	}
+
 	/**
 	 * Adds new node
 	 *
@@ -243,23 +400,17 @@ public class XMLDB {
 	 * @throws NodeExistsException when the node already exists
 	 */
 	public void addNode1(String node1_id) throws NodeExistsException {
-		lock.lock();
+		lock.writeLock().lock();
 		try {
-			try {
-				getNode1(node1_id);
-
+			if (findNode1(node1_id) != null) {
 				throw new NodeExistsException("Node1: " + node1_id + " already exists.");
-			} catch (NodeNotFoundException e) {
-				nodes_modified = true;
-
-				DBElement newNode1 = new DBElement(node_name, DBElement.NAME, node1_id);
-
-				newNode1.addChild(new DBElement(DBElement.MAP));
-				root.addChild(newNode1);
-			}    // end of try-catch
+			}
+			createNode1(node1_id);
+			journal(ADD_NODE1_REC, node1_id, null, null, null);
 		} finally {
-			lock.unlock();
+			lock.writeLock().unlock();
 		}      // end of try-finally
+		saveDB();
 	}
 
 	/**
@@ -270,15 +421,13 @@ public class XMLDB {
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
 	public void removeNode1(String node1_id) throws NodeNotFoundException {
-		lock.lock();
+		lock.writeLock().lock();
 		try {
-			DBElement dbel = getNode1(node1_id);
-
-			nodes_modified = true;
-			root.removeChild(dbel);
-			dbel.removed = true;
+			deleteNode1(getNode1(node1_id));
+			removeFromIndexes(node1_id, null);
+			journal(REMOVE_NODE1_REC, node1_id, null, null, null);
 		} finally {
-			lock.unlock();
+			lock.writeLock().unlock();
 		}    // end of try-finally
 		saveDB();
 	}
@@ -296,7 +445,16 @@ public class XMLDB {
 	public void setData(String node1_id, String subnode, String key, Object value) throws NodeNotFoundException {
 		log.log(Level.FINEST, "Getting node, node1_id: {0}, subnode: {1}, key: {2}, value: {3} @ {4}",
 				new Object[]{node1_id, subnode, key, value, this});
-		getNode(node1_id, subnode, true).setEntry(key, value);
+		lock.writeLock().lock();
+		try {
+			DBElement node = getNodeForUpdate(node1_id, subnode, true);
+
+			node.setEntry(key, value);
+			updateIndexes(node1_id, subnode, key, node);
+			journal(SET_REC, node1_id, subnode, null, node.findEntry(key));
+		} finally {
+			lock.writeLock().unlock();
+		}    // end of try-finally
 		saveDB();
 	}
 
@@ -314,434 +472,1935 @@ public class XMLDB {
 	}
 
 	/**
-	 * Retrieve values of given node under specific path
+	 * Sets <code>int</code> data for the given node at given path
 	 *
 	 * @param node1_id name of the node
 	 * @param subnode path to the node
-	 * @param key under which read the data
-	 *
-	 * @return array of Strings
+	 * @param key under which save the data
+	 * @param value actual value to be saved
 	 *
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
-	public String[] getDataList(String node1_id, String subnode, String key) throws NodeNotFoundException {
-		DBElement node = getNode(node1_id, subnode, false);
+	public void setData(String node1_id, String subnode, String key, int value) throws NodeNotFoundException {
+		lock.writeLock().lock();
+		try {
+			DBElement node = getNodeForUpdate(node1_id, subnode, true);
 
-		return ((node != null) ? node.getEntryStringArrValue(key, null) : null);
+			node.setEntry(key, value);
+			updateIndexes(node1_id, subnode, key, node);
+			journal(SET_REC, node1_id, subnode, null, node.findEntry(key));
+		} finally {
+			lock.writeLock().unlock();
+		}    // end of try-finally
+		saveDB();
 	}
 
 	/**
-	 * Retrieve values of given node under specific path
+	 * Sets <code>int</code> data for the given node at root
 	 *
 	 * @param node1_id name of the node
-	 * @param subnode path to the node
-	 * @param key under which read the data
-	 *
-	 * @return array of Integers
+	 * @param key under which save the data
+	 * @param value actual value to be saved
 	 *
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
-	public int[] getDataIntList(String node1_id, String subnode, String key) throws NodeNotFoundException {
-		DBElement node = getNode(node1_id, subnode, false);
-
-		return ((node != null) ? node.getEntryIntArrValue(key, null) : null);
+	public void setData(String node1_id, String key, int value) throws NodeNotFoundException {
+		setData(node1_id, null, key, value);
 	}
 
 	/**
-	 * Retrieve values of given node under specific path
+	 * Sets <code>long</code> data for the given node at given path
 	 *
 	 * @param node1_id name of the node
 	 * @param subnode path to the node
-	 * @param key under which read the data
-	 *
-	 * @return array of Doubles
+	 * @param key under which save the data
+	 * @param value actual value to be saved
 	 *
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
-	public double[] getDataDoubleList(String node1_id, String subnode, String key) throws NodeNotFoundException {
-		DBElement node = getNode(node1_id, subnode, false);
+	public void setData(String node1_id, String subnode, String key, long value) throws NodeNotFoundException {
+		lock.writeLock().lock();
+		try {
+			DBElement node = getNodeForUpdate(node1_id, subnode, true);
 
-		return ((node != null) ? node.getEntryDoubleArrValue(key, null) : null);
+			node.setEntry(key, value);
+			updateIndexes(node1_id, subnode, key, node);
+			journal(SET_REC, node1_id, subnode, null, node.findEntry(key));
+		} finally {
+			lock.writeLock().unlock();
+		}    // end of try-finally
+		saveDB();
 	}
 
 	/**
-	 * Retrieve value of given node under specific path
+	 * Sets <code>long</code> data for the given node at root
 	 *
 	 * @param node1_id name of the node
-	 * @param subnode path to the node
-	 * @param key under which read the data
-	 * @param def default value if nothing is stored
-	 *
-	 * @return Object with value
+	 * @param key under which save the data
+	 * @param value actual value to be saved
 	 *
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
-	public Object getData(String node1_id, String subnode, String key, Object def) throws NodeNotFoundException {
-		DBElement node = getNode(node1_id, subnode, false);
-
-		return ((node != null) ? node.getEntryValue(key, def) : null);
+	public void setData(String node1_id, String key, long value) throws NodeNotFoundException {
+		setData(node1_id, null, key, value);
 	}
 
 	/**
-	 * Retrieve value of given node under specific path
+	 * Sets <code>double</code> data for the given node at given path
 	 *
 	 * @param node1_id name of the node
 	 * @param subnode path to the node
-	 * @param key under which read the data
-	 * @param def default value if nothing is stored
-	 *
-	 * @return Integer value
+	 * @param key under which save the data
+	 * @param value actual value to be saved
 	 *
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
-	public int getDataInt(String node1_id, String subnode, String key, int def) throws NodeNotFoundException {
-		DBElement node = getNode(node1_id, subnode, false);
+	public void setData(String node1_id, String subnode, String key, double value) throws NodeNotFoundException {
+		lock.writeLock().lock();
+		try {
+			DBElement node = getNodeForUpdate(node1_id, subnode, true);
 
-		return ((node != null) ? node.getEntryIntValue(key, def) : null);
+			node.setEntry(key, value);
+			updateIndexes(node1_id, subnode, key, node);
+			journal(SET_REC, node1_id, subnode, null, node.findEntry(key));
+		} finally {
+			lock.writeLock().unlock();
+		}    // end of try-finally
+		saveDB();
 	}
 
 	/**
-	 * Retrieve value of given node under specific path
+	 * Sets <code>double</code> data for the given node at root
 	 *
 	 * @param node1_id name of the node
-	 * @param subnode path to the node
-	 * @param key under which read the data
-	 * @param def default value if nothing is stored
-	 *
-	 * @return Double value
+	 * @param key under which save the data
+	 * @param value actual value to be saved
 	 *
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
-	public double getDataDouble(String node1_id, String subnode, String key, double def) throws NodeNotFoundException {
-		DBElement node = getNode(node1_id, subnode, false);
-
-		return ((node != null) ? node.getEntryDoubleValue(key, def) : null);
+	public void setData(String node1_id, String key, double value) throws NodeNotFoundException {
+		setData(node1_id, null, key, value);
 	}
 
 	/**
-	 * Retrieve value of given node under specific path
+	 * Sets <code>boolean</code> data for the given node at given path
 	 *
 	 * @param node1_id name of the node
 	 * @param subnode path to the node
-	 * @param key under which read the data
-	 *
-	 * @return Object value
+	 * @param key under which save the data
+	 * @param value actual value to be saved
 	 *
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
-	public Object getData(String node1_id, String subnode, String key) throws NodeNotFoundException {
-		return getData(node1_id, subnode, key, null);
+	public void setData(String node1_id, String subnode, String key, boolean value) throws NodeNotFoundException {
+		lock.writeLock().lock();
+		try {
+			DBElement node = getNodeForUpdate(node1_id, subnode, true);
+
+			node.setEntry(key, value);
+			updateIndexes(node1_id, subnode, key, node);
+			journal(SET_REC, node1_id, subnode, null, node.findEntry(key));
+		} finally {
+			lock.writeLock().unlock();
+		}    // end of try-finally
+		saveDB();
 	}
 
 	/**
-	 * Retrieve value of given node
+	 * Sets <code>boolean</code> data for the given node at root
 	 *
 	 * @param node1_id name of the node
-	 * @param key under which read the data
-	 *
-	 * @return Double value
+	 * @param key under which save the data
+	 * @param value actual value to be saved
 	 *
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
-	public Object getData(String node1_id, String key) throws NodeNotFoundException {
-		return getData(node1_id, null, key, null);
+	public void setData(String node1_id, String key, boolean value) throws NodeNotFoundException {
+		setData(node1_id, null, key, value);
 	}
 
 	/**
-	 * Retrieve list of subnodes under specific path
+	 * Retrieve values of given node under specific path
 	 *
 	 * @param node1_id name of the node
 	 * @param subnode path to the node
+	 * @param key under which read the data
 	 *
-	 * @return arrays of subnodes names
+	 * @return array of Strings
 	 *
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
-	public String[] getSubnodes(String node1_id, String subnode) throws NodeNotFoundException {
-
-		DBElement node = getNode(node1_id, subnode, false);
+	public String[] getDataList(String node1_id, String subnode, String key) throws NodeNotFoundException {
+		lock.readLock().lock();
+		try {
+			DBElement node = getNode(node1_id, subnode, false);
 
-		return ((node != null) ? node.getSubnodes() : null);
+			return ((node != null) ? node.getEntryStringArrValue(key, null) : null);
+		} finally {
+			lock.readLock().unlock();
+		}    // end of try-finally
 	}
 
 	/**
-	 * Retrieve list of subnodes under root
+	 * Retrieve values of given node under specific path
 	 *
 	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 * @param key under which read the data
 	 *
-	 * @return arrays of subnodes names
+	 * @return array of Integers
 	 *
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
-	public String[] getSubnodes(String node1_id) throws NodeNotFoundException {
-		return getSubnodes(node1_id, null);
+	public int[] getDataIntList(String node1_id, String subnode, String key) throws NodeNotFoundException {
+		lock.readLock().lock();
+		try {
+			DBElement node = getNode(node1_id, subnode, false);
+
+			return ((node != null) ? node.getEntryIntArrValue(key, null) : null);
+		} finally {
+			lock.readLock().unlock();
+		}    // end of try-finally
 	}
 
 	/**
-	 * Retrieve list of keys under specific path
+	 * Retrieve values of given node under specific path
 	 *
 	 * @param node1_id name of the node
 	 * @param subnode path to the node
+	 * @param key under which read the data
 	 *
-	 * @return arrays of keys names
+	 * @return array of Longs
 	 *
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
-	public String[] getKeys(String node1_id, String subnode) throws NodeNotFoundException {
-		DBElement node = getNode(node1_id, subnode, false);
+	public long[] getDataLongList(String node1_id, String subnode, String key) throws NodeNotFoundException {
+		lock.readLock().lock();
+		try {
+			DBElement node = getNode(node1_id, subnode, false);
 
-		return ((node != null) ? node.getEntryKeys() : null);
+			return ((node != null) ? node.getEntryLongArrValue(key, null) : null);
+		} finally {
+			lock.readLock().unlock();
+		}    // end of try-finally
 	}
 
 	/**
-	 * Retrieve list of keys under root
+	 * Retrieve values of given node under specific path
 	 *
 	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 * @param key under which read the data
 	 *
-	 * @return arrays of subnodes names
+	 * @return array of Doubles
 	 *
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
-	public String[] getKeys(String node1_id) throws NodeNotFoundException {
-		return getKeys(node1_id, null);
+	public double[] getDataDoubleList(String node1_id, String subnode, String key) throws NodeNotFoundException {
+		lock.readLock().lock();
+		try {
+			DBElement node = getNode(node1_id, subnode, false);
+
+			return ((node != null) ? node.getEntryDoubleArrValue(key, null) : null);
+		} finally {
+			lock.readLock().unlock();
+		}    // end of try-finally
 	}
 
 	/**
-	 * Removes data of specific key from node of given name under given path
+	 * Retrieve values of given node under specific path
 	 *
 	 * @param node1_id name of the node
 	 * @param subnode path to the node
-	 * @param key name of the key
+	 * @param key under which read the data
+	 *
+	 * @return array of Booleans
 	 *
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
-	public void removeData(String node1_id, String subnode, String key) throws NodeNotFoundException {
-		DBElement node = getNode(node1_id, subnode, false);
+	public boolean[] getDataBooleanList(String node1_id, String subnode, String key) throws NodeNotFoundException {
+		lock.readLock().lock();
+		try {
+			DBElement node = getNode(node1_id, subnode, false);
 
-		if (node != null) {
-			node.removeEntry(key);
-			saveDB();
-		}
+			return ((node != null) ? node.getEntryBooleanArrValue(key, null) : null);
+		} finally {
+			lock.readLock().unlock();
+		}    // end of try-finally
 	}
 
 	/**
-	 * Removes data of specific key from node of given name under root element
+	 * Retrieve value of given node under specific path
 	 *
 	 * @param node1_id name of the node
-	 * @param key name of the key
+	 * @param subnode path to the node
+	 * @param key under which read the data
+	 * @param def default value if nothing is stored
+	 *
+	 * @return Object with value
 	 *
 	 * @throws NodeNotFoundException when node doesn't exist on first level
 	 */
-	public void removeData(String node1_id, String key) throws NodeNotFoundException {
-		removeData(node1_id, null, key);
+	public Object getData(String node1_id, String subnode, String key, Object def) throws NodeNotFoundException {
+		lock.readLock().lock();
+		try {
+			DBElement node = getNode(node1_id, subnode, false);
+
+			return ((node != null) ? node.getEntryValue(key, def) : null);
+		} finally {
+			lock.readLock().unlock();
+		}    // end of try-finally
 	}
 
 	/**
-	 * Removes node of given name under given path
+	 * Retrieve value of given node under specific path without throwing exception when the node doesn't exist
 	 *
 	 * @param node1_id name of the node
 	 * @param subnode path to the node
+	 * @param key under which read the data
 	 *
-	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 * @return Object with value or <code>null</code> if the node or the value doesn't exist
 	 */
-	public void removeSubnode(String node1_id, String subnode) throws NodeNotFoundException {
-		DBElement node = getNode(node1_id, subnode, false);
+	public Object findData(String node1_id, String subnode, String key) {
+		lock.readLock().lock();
+		try {
+			DBElement node1 = findNode1(node1_id);
+			DBElement node = (node1 != null) ? resolveNode(node1, node1_id, subnode, false) : null;
 
-		if (node != null) {
-			node.removeNode(subnode);
-			saveDB();
-		}
+			return ((node != null) ? node.getEntryValue(key, null) : null);
+		} finally {
+			lock.readLock().unlock();
+		}    // end of try-finally
 	}
 
 	/**
-	 * Performs synchronization with the file
+	 * Retrieve values of many keys of given node under specific path with a single lookup of the node, without
+	 * throwing exception when the node doesn't exist
 	 *
-	 * @throws IOException when the file doesn't exist
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 * @param keys under which read the data
+	 *
+	 * @return array of values in order of the keys, with <code>null</code> for each missing value, or
+	 * <code>null</code> if the node doesn't exist on first level
 	 */
-	public void sync() throws IOException {
-		write();
+	public Object[] findDataValues(String node1_id, String subnode, String... keys) {
+		lock.readLock().lock();
+		try {
+			DBElement node1 = findNode1(node1_id);
+
+			if (node1 == null) {
+				return null;
+			}
+
+			Object[] result = new Object[keys.length];
+			DBElement node = resolveNode(node1, node1_id, subnode, false);
+
+			if (node != null) {
+				for (int i = 0; i < keys.length; i++) {
+					result[i] = node.getEntryValue(keys[i], null);
+				}
+			}
+
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}    // end of try-finally
+	}
+
+	/**
+	 * Retrieve value of given node under specific path
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 * @param key under which read the data
+	 * @param def default value if nothing is stored
+	 *
+	 * @return Integer value
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	public int getDataInt(String node1_id, String subnode, String key, int def) throws NodeNotFoundException {
+		lock.readLock().lock();
+		try {
+			DBElement node = getNode(node1_id, subnode, false);
+
+			return ((node != null) ? node.getEntryIntValue(key, def) : def);
+		} finally {
+			lock.readLock().unlock();
+		}    // end of try-finally
+	}
+
+	/**
+	 * Retrieve value of given node under specific path
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 * @param key under which read the data
+	 * @param def default value if nothing is stored
+	 *
+	 * @return Long value
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	public long getDataLong(String node1_id, String subnode, String key, long def) throws NodeNotFoundException {
+		lock.readLock().lock();
+		try {
+			DBElement node = getNode(node1_id, subnode, false);
+
+			return ((node != null) ? node.getEntryLongValue(key, def) : def);
+		} finally {
+			lock.readLock().unlock();
+		}    // end of try-finally
+	}
+
+	/**
+	 * Retrieve value of given node under specific path
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 * @param key under which read the data
+	 * @param def default value if nothing is stored
+	 *
+	 * @return Double value
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	public double getDataDouble(String node1_id, String subnode, String key, double def) throws NodeNotFoundException {
+		lock.readLock().lock();
+		try {
+			DBElement node = getNode(node1_id, subnode, false);
+
+			return ((node != null) ? node.getEntryDoubleValue(key, def) : def);
+		} finally {
+			lock.readLock().unlock();
+		}    // end of try-finally
+	}
+
+	/**
+	 * Retrieve value of given node under specific path
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 * @param key under which read the data
+	 * @param def default value if nothing is stored
+	 *
+	 * @return Boolean value
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	public boolean getDataBoolean(String node1_id, String subnode, String key, boolean def)
+			throws NodeNotFoundException {
+		lock.readLock().lock();
+		try {
+			DBElement node = getNode(node1_id, subnode, false);
+
+			return ((node != null) ? node.getEntryBooleanValue(key, def) : def);
+		} finally {
+			lock.readLock().unlock();
+		}    // end of try-finally
+	}
+
+	/**
+	 * Retrieve value of given node under specific path
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 * @param key under which read the data
+	 *
+	 * @return Object value
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	public Object getData(String node1_id, String subnode, String key) throws NodeNotFoundException {
+		return getData(node1_id, subnode, key, null);
+	}
+
+	/**
+	 * Retrieve value of given node
+	 *
+	 * @param node1_id name of the node
+	 * @param key under which read the data
+	 *
+	 * @return Double value
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	public Object getData(String node1_id, String key) throws NodeNotFoundException {
+		return getData(node1_id, null, key, null);
+	}
+
+	/**
+	 * Retrieve list of subnodes under specific path
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 *
+	 * @return arrays of subnodes names
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	public String[] getSubnodes(String node1_id, String subnode) throws NodeNotFoundException {
+		lock.readLock().lock();
+		try {
+			DBElement node = getNode(node1_id, subnode, false);
+
+			return ((node != null) ? node.getSubnodes() : null);
+		} finally {
+			lock.readLock().unlock();
+		}    // end of try-finally
+	}
+
+	/**
+	 * Retrieve list of subnodes under root
+	 *
+	 * @param node1_id name of the node
+	 *
+	 * @return arrays of subnodes names
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	public String[] getSubnodes(String node1_id) throws NodeNotFoundException {
+		return getSubnodes(node1_id, null);
+	}
+
+	/**
+	 * Retrieve list of keys under specific path
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 *
+	 * @return arrays of keys names
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	public String[] getKeys(String node1_id, String subnode) throws NodeNotFoundException {
+		lock.readLock().lock();
+		try {
+			DBElement node = getNode(node1_id, subnode, false);
+
+			return ((node != null) ? node.getEntryKeys() : null);
+		} finally {
+			lock.readLock().unlock();
+		}    // end of try-finally
+	}
+
+	/**
+	 * Retrieve list of keys under root
+	 *
+	 * @param node1_id name of the node
+	 *
+	 * @return arrays of subnodes names
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	public String[] getKeys(String node1_id) throws NodeNotFoundException {
+		return getKeys(node1_id, null);
+	}
+
+	/**
+	 * Removes data of specific key from node of given name under given path
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 * @param key name of the key
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	public void removeData(String node1_id, String subnode, String key) throws NodeNotFoundException {
+		lock.writeLock().lock();
+		try {
+			DBElement node = getNodeForUpdate(node1_id, subnode, false);
+
+			if (node == null) {
+				return;
+			}
+			node.removeEntry(key);
+			updateIndexes(node1_id, subnode, key, node);
+			journal(REMOVE_REC, node1_id, subnode, key, null);
+		} finally {
+			lock.writeLock().unlock();
+		}    // end of try-finally
+		saveDB();
+	}
+
+	/**
+	 * Removes data of specific key from node of given name under root element
+	 *
+	 * @param node1_id name of the node
+	 * @param key name of the key
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	public void removeData(String node1_id, String key) throws NodeNotFoundException {
+		removeData(node1_id, null, key);
+	}
+
+	/**
+	 * Removes node of given name under given path
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	public void removeSubnode(String node1_id, String subnode) throws NodeNotFoundException {
+		lock.writeLock().lock();
+		try {
+			DBElement node1 = getNode1(node1_id);
+
+			if ((subnode == null) || (node1.getSubnodePath(subnode) == null)) {
+				return;
+			}
+			preserve(node1);
+			node1.removeNode(subnode);
+			removeFromIndexes(node1_id, subnode);
+			journal(REMOVE_SUBNODE_REC, node1_id, subnode, null, null);
+		} finally {
+			lock.writeLock().unlock();
+		}    // end of try-finally
+		saveDB();
+	}
+
+	/**
+	 * Applies all changes from the batch under a single lock acquisition. Changes are written to the journal as a
+	 * single record, so after a crash either all or none of them are restored, and database is saved once for the
+	 * whole batch. All changes are validated before any of them is applied.
+	 *
+	 * @param batch changes to apply
+	 * @param atomic if <code>true</code> no change is applied when any of the nodes on first level doesn't exist,
+	 * otherwise changes of existing nodes are applied and the exception is thrown afterwards
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 * @throws IllegalArgumentException when any change is invalid, ie. has no key or value, no change is applied then
+	 */
+	public void apply(XMLDBBatch batch, boolean atomic) throws NodeNotFoundException {
+		if (batch.size() == 0) {
+			return;
+		}
+		for (XMLDBBatch.Operation op : batch.operations) {
+			op.validate();
+		}
+
+		NodeNotFoundException notFound = null;
+
+		lock.writeLock().lock();
+		try {
+			if (atomic) {
+				for (XMLDBBatch.Operation op : batch.operations) {
+					getNode1(op.node1_id);
+				}
+			}
+
+			StringBuilder records = (journal != null) ? new StringBuilder(100 * batch.size()) : null;
+
+			if (!memoryMode) {
+				++changes;
+			}
+			if (records != null) {
+				records.append('<').append(BATCH_REC).append(">\n");
+			}
+			try {
+				notFound = applyOperations(batch, records);
+			} finally {
+
+				// Changes applied before an unexpected failure have to be journaled as well
+				if (records != null) {
+					records.append("</").append(BATCH_REC).append(">\n");
+					writeJournal(records);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}    // end of try-finally
+		saveDB();
+		if (notFound != null) {
+			throw notFound;
+		}
+	}
+
+	/**
+	 * Applies all changes from the batch, changes of existing nodes are applied even if some nodes on first level
+	 * don't exist.
+	 *
+	 * @param batch changes to apply
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	public void apply(XMLDBBatch batch) throws NodeNotFoundException {
+		apply(batch, false);
+	}
+
+	/**
+	 * Performs synchronization with the file, whole database is written to the file and journal is truncated
+	 *
+	 * @throws IOException when the file doesn't exist
+	 */
+	public void sync() throws IOException {
+		write();
+	}
+
+	/**
+	 * Creates secondary index of values stored under the key at given path of all node1s, which is then used by
+	 * {@link #findNode1s(String, String, Object)} and {@link #findNode1sMatching(String, String, Predicate)} and
+	 * maintained on every change. Indexes are kept in memory only and have to be created again after database is
+	 * loaded.
+	 *
+	 * @param subnode path to the node
+	 * @param key name of the key
+	 */
+	public void createIndex(String subnode, String key) {
+		lock.writeLock().lock();
+		try {
+			if (getIndex(subnode, key) != null) {
+				return;
+			}
+
+			XMLDBIndex index = new XMLDBIndex(XMLDBIndex.normalizePath(subnode), key);
+
+			for (Map.Entry<String, DBElement> entry : node1s.entrySet()) {
+				indexNode1(index, entry.getKey(), entry.getValue());
+			}
+			indexes.add(index);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes secondary index of values stored under the key at given path
+	 *
+	 * @param subnode path to the node
+	 * @param key name of the key
+	 */
+	public void dropIndex(String subnode, String key) {
+		lock.writeLock().lock();
+		try {
+			indexes.remove(getIndex(subnode, key));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks whether there is secondary index of values stored under the key at given path
+	 *
+	 * @param subnode path to the node
+	 * @param key name of the key
+	 *
+	 * @return <code>true</code> if values are indexed
+	 */
+	public boolean isIndexed(String subnode, String key) {
+		lock.readLock().lock();
+		try {
+			return getIndex(subnode, key) != null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds nodes having given value stored under the key at given path. For list values nodes with any item equal to
+	 * the value are returned. Value must be of the same type as the stored one, so <code>Integer</code> for values set
+	 * as <code>int</code>. Lookup uses secondary index if it was created, otherwise all nodes are checked under a
+	 * single lock acquisition.
+	 *
+	 * @param subnode path to the node
+	 * @param key name of the key
+	 * @param value value to look for, <code>null</code> matches no node as missing values are not stored
+	 *
+	 * @return list of names of the nodes
+	 */
+	public List<String> findNode1s(String subnode, String key, Object value) {
+		lock.readLock().lock();
+		try {
+			XMLDBIndex index = getIndex(subnode, key);
+
+			return (index != null) ? index.find(value) : scanNode1s(subnode, key, item -> Objects.equals(value, item));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds nodes with value stored under the key at given path matching the predicate. For list values predicate is
+	 * called for each item. With secondary index the predicate is called once for each distinct value, otherwise all
+	 * nodes are checked under a single lock acquisition. Predicate must not access the database.
+	 *
+	 * @param subnode path to the node
+	 * @param key name of the key
+	 * @param predicate condition of the value
+	 *
+	 * @return list of names of the nodes
+	 */
+	public List<String> findNode1sMatching(String subnode, String key, Predicate<Object> predicate) {
+		lock.readLock().lock();
+		try {
+			XMLDBIndex index = getIndex(subnode, key);
+
+			return (index != null) ? index.find(predicate) : scanNode1s(subnode, key, predicate);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes consistent copy of the database to the given file, in the same format as the database file. Changes are
+	 * blocked only while the snapshot of the database is taken, not while it is written.
+	 *
+	 * @param path path of the backup file
+	 *
+	 * @throws IOException when the file can not be written
+	 */
+	public void backup(String path) throws IOException {
+		saveLock.lock();
+		try {
+			Snapshot snap = openSnapshot(false);
+
+			try {
+				writeSnapshot(snap, Paths.get(path));
+			} finally {
+				closeSnapshot();
+			}
+		} finally {
+			saveLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes database to the file if there are any changes not written yet, scheduled write is cancelled
+	 *
+	 * @throws IOException when the file can not be written
+	 */
+	public void flush() throws IOException {
+		synchronized (saveMonitor) {
+			if (saveTask != null) {
+				saveTask.cancel(false);
+				saveTask = null;
+			}
+		}
+		if (isDirty()) {
+			write();
+		}
+	}
+
+	/**
+	 * Writes all pending changes to the file and closes the journal. It should be called before application exits, as
+	 * pending changes are written by daemon threads. Database must not be changed after it is closed, as changes
+	 * wouldn't be written to the file any more.
+	 *
+	 * @throws IOException when the file can not be written
+	 */
+	public void close() throws IOException {
+		synchronized (saveMonitor) {
+			closed = true;
+		}
+		flush();
+		lock.writeLock().lock();
+		try {
+			if (journal != null) {
+				journal.close();
+				journal = null;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks whether there are changes which have not been written to the database file yet. Such changes are already
+	 * persisted in the journal if it is enabled.
+	 *
+	 * @return <code>true</code> if database file is not up to date
+	 */
+	public boolean isDirty() {
+		return changes != savedChanges;
+	}
+
+	/**
+	 * Sets delays of writing the database file after changes. Files of all databases are written by a shared pool of
+	 * <code>tigase.xml.db.saver_threads</code> daemon threads, by default after <code>tigase.xml.db.save_delay</code>
+	 * milliseconds without changes but no later than <code>tigase.xml.db.save_max_delay</code> milliseconds after the
+	 * first change.
+	 *
+	 * @param delay time in milliseconds without changes after which file is written
+	 * @param maxDelay maximal time in milliseconds after the first change after which file is written, even if
+	 * changes are still being made
+	 */
+	public void setSaveDelay(long delay, long maxDelay) {
+		synchronized (saveMonitor) {
+			this.saveDelay = delay;
+			this.saveMaxDelay = maxDelay;
+		}
+	}
+
+	/**
+	 * Checks whether changes are written to the journal file. When enabled with <code>tigase.xml.db.journal</code>
+	 * system property, each change is appended to the journal file kept next to the database file and replayed when
+	 * database is loaded. Whole database file is rewritten only when journal grows over
+	 * <code>tigase.xml.db.journal_max_size</code> bytes or on explicit {@link #sync()} call. Journal is disabled by
+	 * default.
+	 *
+	 * @return <code>true</code> if journal is used
+	 */
+	public boolean isJournalEnabled() {
+		return journalEnabled && !memoryMode;
+	}
+
+	/**
+	 * Retrieves journal filename
+	 *
+	 * @return journal filename
+	 */
+	public String getJournalFileName() {
+		return dbFile + JOURNAL_FILE_SUFFIX;
+	}
+
+	/**
+	 * Creates basic Elements of the XMLDB
+	 *
+	 * @param db_file indicates path to the file on disk to/from which write/read; if parameter starts with "memory://"
+	 * then memory mode (without actual file usage) is enabled
+	 * @param root_name name of the root element
+	 * @param node1_name name of the node
+	 */
+	protected void setupNewDB(String db_file, String root_name, String node1_name) {
+		log.log(Level.FINEST, "Created new XML Database, db_file: {0}, root_name: {1}, node_name: {2} @ {3}",
+				new Object[]{db_file, root_name, node1_name, this});
+		this.dbFile = db_file;
+		if (db_file.startsWith("memory://")) {
+			this.memoryMode = true;
+		}
+		if (root_name != null) {
+			this.root_name = root_name;
+		}    // end of if (root_name != null)
+		if (node1_name != null) {
+			this.node_name = node1_name;
+		}    // end of if (node1_name != null)
+		root = new DBElement(this.root_name);
+		rebuildNode1sIndex();
+		log.log(Level.FINEST, "Created root: {0} @ {1}", new Object[]{root, this.toString()});
+		if (isJournalEnabled()) {
+
+			// Database file must exist as soon as anything is journaled, otherwise journal couldn't be replayed
+			try {
+				openJournal();
+				write();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Can't create database file: " + db_file, e);
+			}
+		}
+	}
+
+	/**
+	 * Loads XML from file
+	 *
+	 * @throws IOException when the file doesn't exist
+	 * @throws XMLDBException when root node doesn't exist
+	 */
+	protected void loadDB() throws IOException, XMLDBException {
+		SimpleParser parser = new SimpleParser();
+		DomBuilderHandler domHandler = new DomBuilderHandler(DBElementFactory.getFactory());
+
+		File file = new File(dbFile);
+
+		if (!memoryMode && XMLDBBinary.isBinary(file)) {
+
+			// Database once converted to binary format is kept in this format
+			binary = true;
+			root = XMLDBBinary.read(file);
+		} else {
+			if (!memoryMode) {
+				parser.parse(domHandler, file);
+			}
+			root = (DBElement) domHandler.getParsedElements().poll();
+		}
+
+		// node1s = root.getChildren();
+		if (root == null) {
+			throw new XMLDBException("Invalid XML DB File");
+		}
+		this.root_name = root.getName();
+
+		Iterator<Element> children = root.childrenIterator();
+
+		if (children.hasNext()) {
+			this.node_name = children.next().getName();
+		}    // end of if (children.hasNext())
+		rebuildNode1sIndex();
+		if (!memoryMode) {
+			File oldJournalFile = new File(getJournalFileName() + OLD_FILE_SUFFIX);
+			File journalFile = new File(getJournalFileName());
+			boolean replayed = oldJournalFile.exists() || journalFile.exists();
+
+			// Old journal is left when database file has not been written after journal rotation
+			boolean complete = !oldJournalFile.exists() || replayJournal(oldJournalFile);
+
+			complete = (!journalFile.exists() || replayJournal(journalFile)) && complete;
+			purgeRemovedNode1s();
+
+			if (isJournalEnabled()) {
+				openJournal();
+				if (!complete) {
+
+					// Broken tail of the journal would hide records appended after it, so it has to be dropped now
+					write();
+				}
+			} else if (replayed) {
+
+				// Journal left with journal disabled now would be replayed later over newer changes in the file
+				write();
+				Files.deleteIfExists(journalFile.toPath());
+			}
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest(root.formatedString(0, 2));
+		}
+	}
+
+	/**
+	 * Schedules writing XML to file. Changes following each other are coalesced, file is written when there were no
+	 * changes for the save delay, but no later than the maximal save delay after the first change.
+	 */
+	protected void saveDB() {
+		if (memoryMode || (journal != null && journalSize <= journalMaxSize)) {
+			return;
+		}
+		synchronized (saveMonitor) {
+			lastChangeTime = System.currentTimeMillis();
+			if ((saveTask == null) && !closed) {
+				firstChangeTime = lastChangeTime;
+				saveTask = saver.schedule(this::scheduledSave, saveDelay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private void scheduledSave() {
+		synchronized (saveMonitor) {
+			if (closed) {
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			long due = Math.min(lastChangeTime + saveDelay, firstChangeTime + saveMaxDelay);
+
+			if (due > now) {
+				saveTask = saver.schedule(this::scheduledSave, due - now, TimeUnit.MILLISECONDS);
+
+				return;
+			}
+			saveTask = null;
+		}
+		try {
+			write();
+		} catch (Exception e) {
+			log.severe("Can't save repository file: " + e);
+		}
+	}
+
+	protected final DBElement getNode1(String node1_id) throws NodeNotFoundException {
+		DBElement result = findNode1(node1_id);
+
+		if (result != null) {
+			return result;
+		} else {
+			throw new NodeNotFoundException("Node1: " + node1_id + " has not been found in db.");
+		}    // end of if (result != null) else
+	}
+
+	/**
+	 * Retrieves the node of the given name at specific path
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 * @param auto_create whether to create path if it's missing
+	 *
+	 * @return retrieved node
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	protected final DBElement getNode(String node1_id, String subnode, boolean auto_create)
+			throws NodeNotFoundException {
+		return resolveNode(getNode1(node1_id), node1_id, subnode, auto_create);
+	}
+
+	/**
+	 * Retrieves the node of the given name at specific path which is going to be changed, must be called while
+	 * holding the write lock
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 * @param auto_create whether to create path if it's missing
+	 *
+	 * @return retrieved node
+	 *
+	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 */
+	private DBElement getNodeForUpdate(String node1_id, String subnode, boolean auto_create)
+			throws NodeNotFoundException {
+		DBElement node1 = getNode1(node1_id);
+
+		preserve(node1);
+
+		return resolveNode(node1, node1_id, subnode, auto_create);
+	}
+
+	private DBElement resolveNode(DBElement node1, String node1_id, String subnode, boolean auto_create) {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Getting node, node1_id: {0}, subnode: {1}, auto_create: {2}, node1: {3} @ {4}",
+					new Object[]{node1_id, subnode, auto_create, node1, this});
+		}
+
+		if (subnode != null) {
+			PathKey key = (pathCacheSize > 0) ? new PathKey(node1, normalizePath(subnode)) : null;
+
+			if (key != null) {
+				ResolvedPath resolved;
+
+				synchronized (pathCache) {
+					resolved = pathCache.get(key);
+				}
+
+				// Path resolved before any subnode of node1 was removed may lead to a removed subnode
+				if ((resolved != null) && (resolved.version == node1.getPathsVersion())) {
+					return resolved.node;
+				}
+			}
+
+			DBElement node = node1.getSubnodePath(subnode);
+
+			if ((node == null) && auto_create) {
+				node = node1.buildNodesTree(subnode);
+			}    // end of if (subnode != null)
+			if ((node != null) && (key != null)) {
+				ResolvedPath resolved = new ResolvedPath(node, node1.getPathsVersion());
+
+				synchronized (pathCache) {
+					pathCache.put(key, resolved);
+				}
+			}
+
+			return node;
+		}
+
+		return node1;
+	}
+
+	/**
+	 * Applies validated operations of the batch and appends their records to the journal record of the batch, must be
+	 * called while holding the write lock
+	 *
+	 * @return exception for the first node1 which doesn't exist or <code>null</code> if all of them exist
+	 */
+	private NodeNotFoundException applyOperations(XMLDBBatch batch, StringBuilder records) {
+		NodeNotFoundException notFound = null;
+		String last_node1_id = null;
+		String last_subnode = null;
+		DBElement node = null;
+
+		for (XMLDBBatch.Operation op : batch.operations) {
+
+			// Consecutive changes of the same node reuse node found for the previous one
+			boolean sameNode = (node != null) && op.node1_id.equals(last_node1_id) &&
+					((op.subnode == null) ? (last_subnode == null) : op.subnode.equals(last_subnode));
+
+			try {
+				switch (op.type) {
+					case XMLDBBatch.SET:
+						if (!sameNode) {
+							node = getNodeForUpdate(op.node1_id, op.subnode, true);
+						}
+						node.setEntry(op.key, op.value);
+						updateIndexes(op.node1_id, op.subnode, op.key, node);
+						if (records != null) {
+							appendJournalRecord(records, SET_REC, op.node1_id, op.subnode, null,
+												node.findEntry(op.key));
+						}
+
+						break;
+
+					case XMLDBBatch.REMOVE:
+						if (!sameNode) {
+							node = getNodeForUpdate(op.node1_id, op.subnode, false);
+						}
+						if (node != null) {
+							node.removeEntry(op.key);
+							updateIndexes(op.node1_id, op.subnode, op.key, node);
+							if (records != null) {
+								appendJournalRecord(records, REMOVE_REC, op.node1_id, op.subnode, op.key, null);
+							}
+						}
+
+						break;
+
+					case XMLDBBatch.REMOVE_SUBNODE:
+						node = null;
+
+						DBElement node1 = getNode1(op.node1_id);
+
+						if ((op.subnode != null) && (node1.getSubnodePath(op.subnode) != null)) {
+							preserve(node1);
+							node1.removeNode(op.subnode);
+							removeFromIndexes(op.node1_id, op.subnode);
+							if (records != null) {
+								appendJournalRecord(records, REMOVE_SUBNODE_REC, op.node1_id, op.subnode, null, null);
+							}
+						}
+
+						break;
+
+					default:
+						break;
+				}    // end of switch (op.type)
+				last_node1_id = op.node1_id;
+				last_subnode = op.subnode;
+			} catch (NodeNotFoundException e) {
+				node = null;
+				if (notFound == null) {
+					notFound = e;
+				}
+			}      // end of try-catch
+		}        // end of for (XMLDBBatch.Operation op : batch.operations)
+
+		return notFound;
+	}
+
+	/**
+	 * Returns index of the key at given path, must be called while holding the lock
+	 */
+	private XMLDBIndex getIndex(String subnode, String key) {
+		if (indexes.isEmpty()) {
+			return null;
+		}
+
+		String path = XMLDBIndex.normalizePath(subnode);
+
+		for (XMLDBIndex index : indexes) {
+			if (index.getKey().equals(key) && Objects.equals(index.getSubnode(), path)) {
+				return index;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Adds value of the node1 to the index, must be called while holding the write lock
+	 */
+	private void indexNode1(XMLDBIndex index, String node1_id, DBElement node1) {
+		DBElement node = (index.getSubnode() == null) ? node1 : node1.getSubnodePath(index.getSubnode());
+		Object value = (node != null) ? node.getEntryValue(index.getKey(), null) : null;
+
+		if (value != null) {
+			index.update(node1_id, value);
+		}
+	}
+
+	/**
+	 * Updates index of the changed key with its current value, must be called while holding the write lock
+	 */
+	private void updateIndexes(String node1_id, String subnode, String key, DBElement node) {
+		XMLDBIndex index = getIndex(subnode, key);
+
+		if (index != null) {
+			index.update(node1_id, node.getEntryValue(key, null));
+		}
+	}
+
+	/**
+	 * Removes node1 from indexes of keys under the removed subnode, or from all indexes if node1 itself was removed,
+	 * must be called while holding the write lock
+	 */
+	private void removeFromIndexes(String node1_id, String subnode) {
+		if (indexes.isEmpty()) {
+			return;
+		}
+
+		String path = XMLDBIndex.normalizePath(subnode);
+
+		for (XMLDBIndex index : indexes) {
+			if ((path == null) || index.isUnder(path)) {
+				index.remove(node1_id);
+			}
+		}
+	}
+
+	private List<String> scanNode1s(String subnode, String key, Predicate<Object> predicate) {
+		List<String> result = new ArrayList<String>();
+
+		for (Map.Entry<String, DBElement> entry : node1s.entrySet()) {
+			DBElement node = (subnode == null) ? entry.getValue() : entry.getValue().getSubnodePath(subnode);
+
+			if ((node != null) && XMLDBIndex.matches(node.getEntryValue(key, null), predicate)) {
+				result.add(entry.getKey());
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Writes XMLDB to file. Only taking the snapshot of the database blocks changes, the snapshot is written while
+	 * changes and reads, which run concurrently under a shared read lock, continue. Node1s changed while the snapshot
+	 * is written are copied just before the first change. Journal is rotated when the snapshot is taken and the old
+	 * journal is removed once the file is replaced, so records of changes made during the write are never lost.
+	 *
+	 * @throws IOException when the file doesn't exist
+	 */
+	private void write() throws IOException {
+		if (memoryMode) {
+			return;
+		}
+		saveLock.lock();
+		try {
+			Snapshot snap = openSnapshot(true);
+
+			try {
+				writeSnapshot(snap, Paths.get(dbFile));
+				savedChanges = snap.changes;
+				Files.deleteIfExists(Paths.get(getJournalFileName() + OLD_FILE_SUFFIX));
+			} finally {
+				closeSnapshot();
+			}
+		} finally {
+			saveLock.unlock();
+		}
+	}
+
+	/**
+	 * Takes point in time snapshot of the database, must be called while holding save lock
+	 */
+	private Snapshot openSnapshot(boolean rotateJournal) throws IOException {
+		lock.writeLock().lock();
+		try {
+			purgeRemovedNode1s();
+
+			Snapshot snap = new Snapshot(root, changes);
+
+			if (rotateJournal && isJournalEnabled()) {
+				rotateJournal();
+			}
+			snapshot = snap;
+
+			return snap;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void closeSnapshot() {
+		lock.writeLock().lock();
+		try {
+			snapshot = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Keeps copy of the node1 for the snapshot being written, must be called while holding the write lock before
+	 * node1 or any of its descendants is changed
+	 */
+	private void preserve(DBElement node1) {
+		Snapshot snap = snapshot;
+
+		if ((snap != null) && !snap.preserved.containsKey(node1)) {
+
+			// Waits until the node1 is written if it is being written right now
+			synchronized (node1) {
+				snap.preserved.put(node1, node1.clone());
+			}
+		}
 	}
 
 	/**
-	 * Creates basic Elements of the XMLDB
+	 * Moves current journal to the old journal file, or appends it there if the old journal still exists because
+	 * previous write failed, and starts a new journal. Current journal is closed only after the new one is opened, so
+	 * when rotation fails changes are still appended to the current journal and the write fails. Journal which could
+	 * not be opened before is opened again here.
+	 */
+	private void rotateJournal() throws IOException {
+		Path current = Paths.get(getJournalFileName());
+		Path old = Paths.get(getJournalFileName() + OLD_FILE_SUFFIX);
+
+		if (journal != null) {
+			journal.flush();
+		}
+		if (Files.exists(current)) {
+			if (Files.exists(old)) {
+				try (FileOutputStream out = new FileOutputStream(old.toFile(), true)) {
+					Files.copy(current, out);
+					out.getFD().sync();
+				}
+			} else {
+				Files.move(current, old, StandardCopyOption.ATOMIC_MOVE);
+			}
+		}
+
+		Writer previous = journal;
+
+		openJournal(false);
+		if (previous != null) {
+			try {
+				previous.close();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Can't close old journal file: " + old, e);
+			}
+		}
+	}
+
+	/**
+	 * Creates new node1 which is not added to the database yet
+	 */
+	DBElement newNode1(String node1_id) {
+		DBElement node1 = new DBElement(node_name, DBElement.NAME, node1_id);
+
+		node1.addChild(new DBElement(DBElement.MAP));
+
+		return node1;
+	}
+
+	/**
+	 * Adds node1s built by {@link XMLDBBulkLoader} to the database under a single lock acquisition. Node1s are not
+	 * written to the journal, so database file has to be written afterwards.
 	 *
-	 * @param db_file indicates path to the file on disk to/from which write/read; if parameter starts with "memory://"
-	 * then memory mode (without actual file usage) is enabled
-	 * @param root_name name of the root element
-	 * @param node1_name name of the node
+	 * @param loaded new node1s by their names
+	 *
+	 * @throws NodeExistsException when any of the node1s already exists, no node1 is added then
 	 */
-	protected void setupNewDB(String db_file, String root_name, String node1_name) {
-		log.log(Level.FINEST, "Created new XML Database, db_file: {0}, root_name: {1}, node_name: {2} @ {3}",
-				new Object[]{db_file, root_name, node1_name, this});
-		this.dbFile = db_file;
-		if (db_file.startsWith("memory://")) {
-			this.memoryMode = true;
+	void attachNode1s(Map<String, DBElement> loaded) throws NodeExistsException {
+		if (loaded.isEmpty()) {
+			return;
 		}
-		if (root_name != null) {
-			this.root_name = root_name;
-		}    // end of if (root_name != null)
-		if (node1_name != null) {
-			this.node_name = node1_name;
-		}    // end of if (node1_name != null)
-		tmp_node = new DBElement(node1_name);
-		log.log(Level.FINEST, "Created tmp_node1: {0}", new Object[]{tmp_node});
-		root = new DBElement(this.root_name);
-		log.log(Level.FINEST, "Created root: {0} @ {1}", new Object[]{root, this.toString()});
+		lock.writeLock().lock();
+		try {
+			for (String node1_id : loaded.keySet()) {
+				if (findNode1(node1_id) != null) {
+					throw new NodeExistsException("Node1: " + node1_id + " already exists.");
+				}
+			}
+			for (Map.Entry<String, DBElement> entry : loaded.entrySet()) {
+				root.addChild(entry.getValue());
+				node1s.put(entry.getKey(), entry.getValue());
+			}
+			if (sortedNode1s != null) {
+				sortedNode1s.putAll(loaded);
+			}
+			for (XMLDBIndex index : indexes) {
+				for (Map.Entry<String, DBElement> entry : loaded.entrySet()) {
+					indexNode1(index, entry.getKey(), entry.getValue());
+				}
+			}
+			if (!memoryMode) {
+				++changes;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
 
+	/**
+	 * Returns lock guarding the database tree, so a database made of more databases can hold locks of all of them
+	 */
+	final ReentrantReadWriteLock getLock() {
+		return lock;
 	}
 
 	/**
-	 * Loads XML from file
+	 * Creates new node1 and adds it to the index, must be called while holding the lock
+	 */
+	private DBElement createNode1(String node1_id) {
+		DBElement node1 = newNode1(node1_id);
+
+		root.addChild(node1);
+		node1s.put(node1_id, node1);
+		if (sortedNode1s != null) {
+			sortedNode1s.put(node1_id, node1);
+		}
+
+		return node1;
+	}
+
+	/**
+	 * Removes node1 from the index and marks it as removed, must be called while holding the lock. Removed node1s are
+	 * dropped from the tree in batches, as removing each of them from the list of all node1s would take linear time.
+	 */
+	private void deleteNode1(DBElement node1) {
+		String node1_id = node1.getAttributeStaticStr(DBElement.NAME);
+
+		node1.removed = true;
+		node1s.remove(node1_id, node1);
+		if (sortedNode1s != null) {
+			sortedNode1s.remove(node1_id, node1);
+		}
+		if (++removedNode1s >= Math.max(PURGE_MIN_REMOVED, node1s.size() >> 3)) {
+			purgeRemovedNode1s();
+		}
+	}
+
+	/**
+	 * Drops removed node1s from the tree, must be called while holding the write lock
+	 */
+	private void purgeRemovedNode1s() {
+		if (removedNode1s > 0) {
+			root.purgeRemoved();
+			removedNode1s = 0;
+		}
+	}
+
+	private void rebuildNode1sIndex() {
+		node1s.clear();
+		sortedNode1s = null;
+
+		root.forEachChild(child -> {
+			String node1_id = child.getAttributeStaticStr(DBElement.NAME);
+
+			if (node1_id != null) {
+				node1s.put(node1_id, (DBElement) child);
+			}
+		});
+	}
+
+	private NavigableMap<String, DBElement> getSortedNode1s(String from, boolean fromInclusive, String to) {
+		NavigableMap<String, DBElement> sorted = getSortedNode1s();
+
+		if ((from != null) && (to != null)) {
+			if (from.compareTo(to) >= 0) {
+				return Collections.emptyNavigableMap();
+			}
+
+			return sorted.subMap(from, fromInclusive, to, false);
+		}
+		if (from != null) {
+			return sorted.tailMap(from, fromInclusive);
+		}
+		if (to != null) {
+			return sorted.headMap(to, false);
+		}
+
+		return sorted;
+	}
+
+	/**
+	 * Returns the smallest name greater than all names starting with the prefix
 	 *
-	 * @throws IOException when the file doesn't exist
-	 * @throws XMLDBException when root node doesn't exist
+	 * @return end of the range or <code>null</code> if there is no such name
 	 */
-	protected void loadDB() throws IOException, XMLDBException {
-		InputStreamReader file = new InputStreamReader(new FileInputStream(dbFile), "UTF-8");
-		char[] buff = new char[16 * 1024];
-		SimpleParser parser = new SimpleParser();
-		DomBuilderHandler domHandler = new DomBuilderHandler(DBElementFactory.getFactory());
-		int result = -1;
+	static String getPrefixEnd(String prefix) {
+		if (prefix == null) {
+			return null;
+		}
+		for (int i = prefix.length() - 1; i >= 0; i--) {
+			char chr = prefix.charAt(i);
 
-		if (!memoryMode) {
-			while ((result = file.read(buff)) != -1) {
-				parser.parse(domHandler, buff, 0, result);
+			if (chr != Character.MAX_VALUE) {
+				return prefix.substring(0, i) + (char) (chr + 1);
 			}
-			file.close();
 		}
-		root = (DBElement) domHandler.getParsedElements().poll();
 
-		// node1s = root.getChildren();
-		if (root == null) {
-			throw new XMLDBException("Invalid XML DB File");
+		return null;
+	}
+
+	private NavigableMap<String, DBElement> getSortedNode1s() {
+		ConcurrentSkipListMap<String, DBElement> sorted = sortedNode1s;
+
+		if (sorted == null) {
+			lock.writeLock().lock();
+			try {
+				sorted = sortedNode1s;
+				if (sorted == null) {
+					sorted = new ConcurrentSkipListMap<String, DBElement>(node1s);
+					sortedNode1s = sorted;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
 		}
-		this.root_name = root.getName();
 
-		List<Element> children = root.getChildren();
+		return sorted;
+	}
+
+	/**
+	 * Streams the snapshot to the temporary file which then atomically replaces the target file, so the file is always
+	 * complete even if writing is interrupted. Formatted text of each node1 is cached between writes of XML file and
+	 * only changed node1s are formatted again, unless <code>tigase.xml.db.format_cache</code> system property is set to
+	 * <code>false</code> to save memory.
+	 */
+	private void writeSnapshot(Snapshot snap, Path target) throws IOException {
+		Path tmp = Paths.get(target.toString() + TMP_FILE_SUFFIX);
+
+		try (FileOutputStream out = new FileOutputStream(tmp.toFile(), false)) {
+			if (binary) {
+				DataOutputStream file = new DataOutputStream(
+						new BufferedOutputStream(out, XMLDBBinary.BUFFER_SIZE));
+
+				XMLDBBinary.writeHeader(file, root_name, node_name, snap.node1s.size());
+				writeSnapshotNode1s(snap, node1 -> XMLDBBinary.writeNode(file, node1));
+				file.flush();
+			} else {
+				Writer file = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
 
-		if ((children != null) && (children.size() > 0)) {
-			this.node_name = children.get(0).getName();
-		}    // end of if (children != null && children.size() > 0)
-		log.finest(root.formatedString(0, 2));
+				file.write("<?xml version='1.0' encoding='UTF-8'?>\n");
+				root.writeStartTag(file, 0, snap.node1s.isEmpty());
+				if (!snap.node1s.isEmpty()) {
+					writeSnapshotNode1s(snap, node1 -> {
+						if (formatCache) {
+							node1.writeCachedFormated(file, 1, 1);
+						} else {
+							node1.writeFormated(file, 1, 1);
+						}
+					});
+					root.writeEndTag(file, 0);
+				}
+				file.write("\n");
+				file.flush();
+			}
+			out.getFD().sync();
+		}
+		try {
+			Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
 	}
 
 	/**
-	 * Saves XML to file
+	 * Writes each node1 of the snapshot in the state from the moment when snapshot was taken
 	 */
-	protected void saveDB() {
-		if (!memoryMode) {
-			synchronized (db_saver) {
-				db_saver.notifyAll();
+	private void writeSnapshotNode1s(Snapshot snap, Node1Writer writer) throws IOException {
+		for (DBElement node1 : snap.node1s) {
+			DBElement copy;
+
+			// Node1 can't be changed while it is written, it has to be preserved first
+			synchronized (node1) {
+				copy = snap.preserved.get(node1);
+				if (copy == null) {
+					writer.write(node1);
+
+					continue;
+				}
 			}
+			writer.write(copy);
 		}
 	}
 
-	protected final DBElement getNode1(String node1_id) throws NodeNotFoundException {
-		DBElement result = findNode1(node1_id);
+	private void openJournal() throws IOException {
+		openJournal(true);
+	}
 
-		if (result != null) {
-			return result;
+	/**
+	 * Opens the journal, current journal is left unchanged if the file can not be opened
+	 */
+	private void openJournal(boolean append) throws IOException {
+		File journalFile = new File(getJournalFileName());
+		FileOutputStream stream = new FileOutputStream(journalFile, append);
+
+		journalStream = stream;
+		journal = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+		journalSize = journalFile.length();
+	}
+
+	/**
+	 * Appends change record to the journal, must be called while holding the lock, just after the change was applied
+	 */
+	private void journal(String type, String node1_id, String subnode, String key, DBElement entry) {
+		if (!memoryMode) {
+			++changes;
+		}
+		if (journal == null) {
+			return;
+		}
+
+		StringBuilder record = new StringBuilder(100);
+
+		appendJournalRecord(record, type, node1_id, subnode, key, entry);
+		writeJournal(record);
+	}
+
+	private void appendJournalRecord(StringBuilder record, String type, String node1_id, String subnode, String key,
+									 DBElement entry) {
+		record.append('<').append(type);
+		appendJournalAttr(record, NODE1_ATTR, node1_id);
+		appendJournalAttr(record, PATH_ATTR, subnode);
+		if (entry != null) {
+
+			// Entry key is not escaped by the entry itself, so it is carried by the record and set again on replay
+			appendJournalAttr(record, KEY_ATTR, entry.getAttributeStaticStr(DBElement.KEY));
+			record.append("><").append(DBElement.ENTRY);
+			appendJournalAttr(record, DBElement.TYPE, entry.getAttributeStaticStr(DBElement.TYPE));
+			appendJournalAttr(record, DBElement.VALUE, entry.getAttributeStaticStr(DBElement.VALUE));
+			if (entry.getChildrenCount() > 0) {
+				record.append('>');
+				entry.forEachChild(item -> item.toString(record));
+				record.append("</").append(DBElement.ENTRY).append('>');
+			} else {
+				record.append("/>");
+			}
+			record.append("</").append(type).append(">\n");
 		} else {
-			throw new NodeNotFoundException("Node1: " + node1_id + " has not been found in db.");
-		}    // end of if (result != null) else
+			appendJournalAttr(record, KEY_ATTR, key);
+			record.append("/>\n");
+		}
+	}
+
+	private void writeJournal(CharSequence record) {
+		try {
+			journal.append(record);
+			journal.flush();
+			if (journalSync) {
+				journalStream.getChannel().force(false);
+			}
+			journalSize += record.length();
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Can't write to journal file: " + getJournalFileName() +
+					", database file will be written instead and journal opened again", e);
+
+			// Without journal each change schedules write of the database file, which opens the journal again
+			try {
+				journal.close();
+			} catch (IOException ex) {
+				log.log(Level.FINEST, "Can't close journal file", ex);
+			}
+			journal = null;
+		}
+	}
+
+	private void appendJournalAttr(StringBuilder record, String name, String value) {
+		if (value != null) {
+			record.append(' ').append(name).append("=\"").append(XMLUtils.escape(value)).append('"');
+		}
 	}
 
 	/**
-	 * Retrieves the node of the given name at specific path
+	 * Applies all complete records from the journal to the loaded database
 	 *
-	 * @param node1_id name of the node
-	 * @param subnode path to the node
-	 * @param auto_create whether to create path if it's missing
-	 *
-	 * @return retrieved node
-	 *
-	 * @throws NodeNotFoundException when node doesn't exist on first level
+	 * @return <code>false</code> if the journal ends with incomplete or broken record
 	 */
-	protected final DBElement getNode(String node1_id, String subnode, boolean auto_create)
-			throws NodeNotFoundException {
-		DBElement node1 = getNode1(node1_id);
+	private boolean replayJournal(File journalFile) throws IOException {
+		JournalHandler handler = new JournalHandler();
 
-		log.log(Level.FINEST, "Getting node, node1_id: {0}, subnode: {1}, auto_create: {2}, node1: {3} @ {4}",
-				new Object[]{node1_id, subnode, auto_create, node1, this});
+		new SimpleParser().parse(handler, journalFile);
 
-		if (subnode != null) {
-			DBElement node = node1.getSubnodePath(subnode);
+		Element record;
+		int count = 0;
 
-			if ((node == null) && auto_create) {
-				node = node1.buildNodesTree(subnode);
-			}    // end of if (subnode != null)
+		while ((record = handler.getParsedElements().poll()) != null) {
+			applyJournalRecord(record);
+			++count;
+		}
+		log.log(Level.CONFIG, "Replayed {0} records from journal: {1}", new Object[]{count, journalFile});
+		if (handler.isBroken()) {
 
-			return node;
+			// Records after the broken one are dropped when the database file is written, so journal is kept aside
+			Path broken = Paths.get(journalFile.getPath() + BROKEN_FILE_SUFFIX + System.currentTimeMillis());
+
+			Files.copy(journalFile.toPath(), broken);
+			log.log(Level.SEVERE, "Journal file: {0} is broken, records after the broken one are not replayed, " +
+					"journal is kept in: {1}", new Object[]{journalFile, broken});
 		}
 
-		return node1;
+		return handler.isComplete() && endsWithRecord(journalFile);
 	}
 
 	/**
-	 * Writes XMLDB to file
-	 *
-	 * @throws IOException when the file doesn't exist
+	 * Records may be applied to the database which already contains them, so all of them are idempotent
 	 */
-	private void write() throws IOException {
-		lock.lock();
-		try {
-			String buffer = root.formatedString(0, 1);
-			OutputStreamWriter file = new OutputStreamWriter(new FileOutputStream(dbFile, false), "UTF-8");
+	private void applyJournalRecord(Element record) {
+		String type = record.getName();
 
-			if (!memoryMode) {
-				file.write("<?xml version='1.0' encoding='UTF-8'?>\n");
-				file.write(buffer + "\n");
-				file.close();
+		if (type == BATCH_REC) {
+			record.forEachChild(this::applyJournalRecord);
+
+			return;
+		}
+
+		String node1_id = record.getAttributeStaticStr(NODE1_ATTR);
+		String subnode = record.getAttributeStaticStr(PATH_ATTR);
+		DBElement node1 = findNode1(node1_id);
+
+		if (type == ADD_NODE1_REC || type == SET_REC) {
+			if (node1 == null) {
+				node1 = createNode1(node1_id);
 			}
-		} finally {
-			lock.unlock();
-		}    // end of try-finally
+			if (type == SET_REC) {
+				DBElement node = (subnode == null) ? node1 : node1.buildNodesTree(subnode);
+				Element entry = record.getChild(DBElement.ENTRY);
+				String key = record.getAttributeStaticStr(KEY_ATTR);
+
+				if ((entry != null) && (key != null)) {
+					entry.setAttribute(DBElement.KEY, key);
+				}
+				if ((node != null) && (entry != null)) {
+					node.replaceEntry((DBElement) entry);
+				}
+			}
+		} else if (node1 == null) {
+			return;
+		} else if (type == REMOVE_NODE1_REC) {
+			deleteNode1(node1);
+		} else if (type == REMOVE_REC) {
+			DBElement node = (subnode == null) ? node1 : node1.getSubnodePath(subnode);
+
+			if (node != null) {
+				node.removeEntry(record.getAttributeStaticStr(KEY_ATTR));
+			}
+		} else if (type == REMOVE_SUBNODE_REC) {
+			if (subnode != null) {
+				node1.removeNode(subnode);
+			}
+		} else {
+			log.log(Level.WARNING, "Unknown journal record: {0}", record);
+		}
+	}
+
+	private boolean endsWithRecord(File journalFile) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(journalFile, "r")) {
+			for (long pos = file.length() - 1; pos >= 0; pos--) {
+				file.seek(pos);
+
+				int chr = file.read();
+
+				if (!Character.isWhitespace(chr)) {
+					return chr == '>';
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns path without empty elements, so all paths leading to the same subnode share one cache entry
+	 */
+	static String normalizePath(String subnode) {
+		int len = subnode.length();
+
+		if ((len > 0) && (subnode.charAt(0) != '/') && (subnode.charAt(len - 1) != '/') &&
+				(subnode.indexOf("//") < 0)) {
+			return subnode;
+		}
+
+		StringBuilder result = new StringBuilder(len);
+		StringTokenizer strtok = new StringTokenizer(subnode, "/", false);
+
+		while (strtok.hasMoreTokens()) {
+			if (result.length() > 0) {
+				result.append('/');
+			}
+			result.append(strtok.nextToken());
+		}
+
+		return result.toString();
+	}
+
+	private interface Node1Writer {
+
+		void write(DBElement node1) throws IOException;
 	}
 
 	/**
-	 * Helper class for comparing elements
+	 * Point in time snapshot of the database. It refers to live node1s, node1 changed while snapshot is open is copied
+	 * before the change, so the snapshot can be written while changes continue.
 	 */
+	private static class Snapshot {
 
-	private static class DBElementComparator
-			implements Comparator<DBElement>, Serializable {
+		private final long changes;
+		private final List<DBElement> node1s;
+		private final Map<DBElement, DBElement> preserved = Collections.synchronizedMap(
+				new IdentityHashMap<DBElement, DBElement>());
 
-		/** serialVersionUID */
-		private static final long serialVersionUID = 1L;
+		private Snapshot(DBElement root, long changes) {
+			this.changes = changes;
+			this.node1s = new ArrayList<DBElement>(root.getChildrenCount());
+			root.forEachChild(child -> node1s.add((DBElement) child));
+		}
+	}
+
+	/**
+	 * Key of the resolved paths cache, node1 is compared by identity as it may be replaced by a new one with the same
+	 * name
+	 */
+	private static class PathKey {
+
+		private final int hash;
+		private final DBElement node1;
+		private final String subnode;
+
+		private PathKey(DBElement node1, String subnode) {
+			this.node1 = node1;
+			this.subnode = subnode;
+			this.hash = 31 * System.identityHashCode(node1) + subnode.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof PathKey)) {
+				return false;
+			}
+
+			PathKey key = (PathKey) obj;
+
+			return hash == key.hash && node1 == key.node1 && subnode.equals(key.subnode);
+		}
 
 		@Override
-		public int compare(DBElement el1, DBElement el2) {
-			String name1 = el1.getAttributeStaticStr("name");
-			String name2 = el2.getAttributeStaticStr("name");
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Subnode resolved from the path together with version of node1 paths for which it was resolved
+	 */
+	private static class ResolvedPath {
+
+		private final DBElement node;
+		private final int version;
 
-			return name1.compareTo(name2);
+		private ResolvedPath(DBElement node, int version) {
+			this.node = node;
+			this.version = version;
 		}
 	}
 
 	/**
-	 * Helper class for performing scheduled writes to file
+	 * Helper class tracking whether journal contains only complete records
 	 */
-	class DBSaver
-			implements Runnable {
+	private static class JournalHandler
+			extends DomBuilderHandler {
 
-		public DBSaver() {
+		private int depth = 0;
+		private boolean error = false;
+
+		private JournalHandler() {
+			super(DBElementFactory.getFactory());
 		}
 
 		@Override
-		public void run() {
-			while (true) {
-				try {
-					synchronized (db_saver) {
-						db_saver.wait();
-					}
-					Thread.sleep(2000);
-				} catch (InterruptedException e) {
-				}
-				try {
-					sync();
-				} catch (Exception e) {
-					log.severe("Can't save repository file: " + e);
-				}
-			}    // end of while (true)
+		public void error(String errorMessage) {
+			super.error(errorMessage);
+			error = true;
+		}
+
+		@Override
+		public void startElement(StringBuilder name, StringBuilder[] attr_names, StringBuilder[] attr_values) {
+			super.startElement(name, attr_names, attr_values);
+			++depth;
+		}
+
+		@Override
+		public boolean endElement(StringBuilder name) {
+			--depth;
+
+			return super.endElement(name);
+		}
+
+		private boolean isBroken() {
+			return error;
+		}
+
+		private boolean isComplete() {
+			return !error && depth == 0;
 		}
 	}
 }    // XMLDB
@@ -0,0 +1,185 @@
+/*
+ * Tigase XML Tools - Tigase XML Tools
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xml.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * <code>XMLDBBatch</code> collects changes which are later applied to the database at once by
+ * {@link XMLDB#apply(XMLDBBatch, boolean)}. Whole batch is applied under a single lock acquisition, written to the
+ * journal as a single record and causes a single save of the database, so it is much cheaper than making the same
+ * changes one by one. Batch is not thread safe, it should be filled by one thread and may be applied many times.
+ */
+public class XMLDBBatch {
+
+	static final int SET = 0;
+	static final int REMOVE = 1;
+	static final int REMOVE_SUBNODE = 2;
+
+	final List<Operation> operations = new ArrayList<Operation>();
+
+	/**
+	 * Adds setting data for the given node at given path
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 * @param key under which save the data
+	 * @param value actual value to be saved
+	 *
+	 * @return this batch
+	 */
+	public XMLDBBatch setData(String node1_id, String subnode, String key, Object value) {
+		operations.add(new Operation(SET, node1_id, subnode, key, value));
+
+		return this;
+	}
+
+	/**
+	 * Adds setting data for the given node at root
+	 *
+	 * @param node1_id name of the node
+	 * @param key under which save the data
+	 * @param value actual value to be saved
+	 *
+	 * @return this batch
+	 */
+	public XMLDBBatch setData(String node1_id, String key, Object value) {
+		return setData(node1_id, null, key, value);
+	}
+
+	/**
+	 * Adds removal of data of specific key from node of given name under given path
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 * @param key name of the key
+	 *
+	 * @return this batch
+	 */
+	public XMLDBBatch removeData(String node1_id, String subnode, String key) {
+		operations.add(new Operation(REMOVE, node1_id, subnode, key, null));
+
+		return this;
+	}
+
+	/**
+	 * Adds removal of data of specific key from node of given name under root element
+	 *
+	 * @param node1_id name of the node
+	 * @param key name of the key
+	 *
+	 * @return this batch
+	 */
+	public XMLDBBatch removeData(String node1_id, String key) {
+		return removeData(node1_id, null, key);
+	}
+
+	/**
+	 * Adds removal of node of given name under given path
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 *
+	 * @return this batch
+	 */
+	public XMLDBBatch removeSubnode(String node1_id, String subnode) {
+		operations.add(new Operation(REMOVE_SUBNODE, node1_id, subnode, null, null));
+
+		return this;
+	}
+
+	/**
+	 * Returns number of changes in the batch
+	 *
+	 * @return number of changes
+	 */
+	public int size() {
+		return operations.size();
+	}
+
+	/**
+	 * Removes all changes from the batch
+	 */
+	public void clear() {
+		operations.clear();
+	}
+
+	static class Operation {
+
+		final String key;
+		final String node1_id;
+		final String subnode;
+		final int type;
+		final Object value;
+
+		private Operation(int type, String node1_id, String subnode, String key, Object value) {
+			this.type = type;
+			this.node1_id = node1_id;
+			this.subnode = subnode;
+			this.key = key;
+			this.value = value;
+		}
+
+		/**
+		 * Checks whether the operation can be applied, so that no operation of the batch fails after some of them have
+		 * been applied already
+		 *
+		 * @throws IllegalArgumentException when the operation can not be applied
+		 */
+		void validate() {
+			if (node1_id == null) {
+				throw new IllegalArgumentException("Node1 name is missing in batch operation");
+			}
+			if ((type != REMOVE_SUBNODE) && (key == null)) {
+				throw new IllegalArgumentException("Key is missing in batch operation for node1: " + node1_id);
+			}
+			if (type != SET) {
+				return;
+			}
+			if (subnode != null) {
+				StringTokenizer strtok = new StringTokenizer(subnode, "/", false);
+
+				while (strtok.hasMoreTokens()) {
+					if (strtok.nextToken().equals("null")) {
+						throw new IllegalArgumentException("Invalid subnode path: " + subnode);
+					}
+				}
+			}
+			if (value == null) {
+				throw new IllegalArgumentException("Value is missing for key: " + key + " of node1: " + node1_id);
+			}
+
+			Class<?> component = value.getClass().getComponentType();
+
+			if ((component != null) && component.isPrimitive()) {
+				if ((component != int.class) && (component != long.class) && (component != double.class) &&
+						(component != boolean.class)) {
+					throw new IllegalArgumentException("Unsupported type of value for key: " + key);
+				}
+			} else if (component != null) {
+				for (Object item : (Object[]) value) {
+					if (item == null) {
+						throw new IllegalArgumentException("Null list item for key: " + key + " of node1: " + node1_id);
+					}
+				}
+			}
+		}
+	}
+}    // XMLDBBatch
@@ -0,0 +1,467 @@
+/*
+ * Tigase XML Tools - Tigase XML Tools
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xml.db;
+
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <code>XMLDBBinary</code> reads and writes database tree in a compact binary format, which is much faster to load
+ * than <em>XML</em> as no parsing and decoding of values is needed. <p>File starts with <code>TXDB</code> magic
+ * bytes followed by the format version, root element name, node1 element name and number of node1s. Each node is
+ * written as its name, number of entries, entries, number of subnodes and subnodes. Each entry is written as its key,
+ * type tag and value in native encoding of its type; arrays are prefixed with number of items and strings with
+ * number of bytes of their <em>UTF-8</em> form.</p> <p>Database files may be converted between formats by running
+ * this class:</p>
+ * <pre>{@code java tigase.xml.db.XMLDBBinary to-binary|to-xml input_file output_file}</pre>
+ * <p>Converted file doesn't include changes from the journal of the input database, so the database should be
+ * closed before conversion.</p>
+ */
+public class XMLDBBinary {
+
+	private static final byte[] MAGIC = {'T', 'X', 'D', 'B'};
+	private static final byte VERSION = 1;
+	private static final byte INTEGER_TAG = 1;
+	private static final byte INTEGER_ARR_TAG = 2;
+	private static final byte LONG_TAG = 3;
+	private static final byte LONG_ARR_TAG = 4;
+	private static final byte STRING_TAG = 5;
+	private static final byte STRING_ARR_TAG = 6;
+	private static final byte DOUBLE_TAG = 7;
+	private static final byte DOUBLE_ARR_TAG = 8;
+	private static final byte BOOLEAN_TAG = 9;
+	private static final byte BOOLEAN_ARR_TAG = 10;
+
+	/** Entry which value can't be decoded, it is stored in its <em>XML</em> form */
+	private static final byte XML_TAG = 11;
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 3 || !(args[0].equals("to-binary") || args[0].equals("to-xml"))) {
+			System.err.println(
+					"Usage: java " + XMLDBBinary.class.getName() + " to-binary|to-xml input_file output_file");
+			System.exit(1);
+		}
+
+		File input = new File(args[1]);
+		DBElement root = isBinary(input) ? read(input) : readXML(input);
+
+		try (OutputStream out = new FileOutputStream(args[2])) {
+			if (args[0].equals("to-binary")) {
+				write(root, out);
+			} else {
+				writeXML(root, out);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the file contains database in binary format
+	 *
+	 * @param file database file
+	 *
+	 * @return <code>true</code> if file starts with binary format magic bytes
+	 *
+	 * @throws IOException when the file can not be read
+	 */
+	public static boolean isBinary(File file) throws IOException {
+		if (file.length() < MAGIC.length) {
+			return false;
+		}
+
+		byte[] header = new byte[MAGIC.length];
+
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			in.readFully(header);
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (header[i] != MAGIC[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads database tree from the file in binary format
+	 *
+	 * @param file database file
+	 *
+	 * @return root element of the database
+	 *
+	 * @throws IOException when the file can not be read or is not valid
+	 */
+	public static DBElement read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+			byte[] header = new byte[MAGIC.length];
+
+			in.readFully(header);
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (header[i] != MAGIC[i]) {
+					throw new IOException("Not a binary database file: " + file);
+				}
+			}
+
+			byte version = in.readByte();
+
+			if (version != VERSION) {
+				throw new IOException("Unsupported binary database version " + version + " of file: " + file);
+			}
+
+			DBElement root = new DBElement(readString(in));
+			String node1_name = readString(in);
+			int count = in.readInt();
+
+			for (int i = 0; i < count; i++) {
+				DBElement node1 = new DBElement(node1_name, DBElement.NAME, readString(in));
+
+				node1.addChild(new DBElement(DBElement.MAP));
+				readNode(in, node1);
+				root.addChild(node1);
+			}
+
+			return root;
+		}
+	}
+
+	/**
+	 * Writes database tree in binary format
+	 *
+	 * @param root root element of the database
+	 * @param output output to which database is written, it is flushed but not closed
+	 *
+	 * @throws IOException when data can not be written
+	 */
+	public static void write(DBElement root, OutputStream output) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+		List<DBElement> node1s = getElements(root, null);
+
+		writeHeader(out, root.getName(), node1s.isEmpty() ? DBElement.NODE : node1s.get(0).getName(), node1s.size());
+		for (DBElement node1 : node1s) {
+			writeNode(out, node1);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes file header, it has to be followed by the given number of node1s written by
+	 * {@link #writeNode(DataOutputStream, DBElement)}
+	 */
+	static void writeHeader(DataOutputStream out, String root_name, String node1_name, int count)
+			throws IOException {
+		out.write(MAGIC);
+		out.writeByte(VERSION);
+		writeString(out, root_name);
+		writeString(out, node1_name);
+		out.writeInt(count);
+	}
+
+	private static DBElement readXML(File file) throws IOException {
+		DomBuilderHandler handler = new DomBuilderHandler(DBElementFactory.getFactory());
+
+		new SimpleParser().parse(handler, file);
+
+		DBElement root = (DBElement) handler.getParsedElements().poll();
+
+		if (root == null) {
+			throw new IOException("Invalid XML DB File: " + file);
+		}
+
+		return root;
+	}
+
+	private static void writeXML(DBElement root, OutputStream output) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), BUFFER_SIZE);
+
+		out.write("<?xml version='1.0' encoding='UTF-8'?>\n");
+		root.writeFormated(out, 0, 1);
+		out.write("\n");
+		out.flush();
+	}
+
+	private static void readNode(DataInputStream in, DBElement node) throws IOException {
+		int entries = in.readInt();
+
+		for (int i = 0; i < entries; i++) {
+			readEntry(in, node);
+		}
+
+		int subnodes = in.readInt();
+
+		for (int i = 0; i < subnodes; i++) {
+			readNode(in, node.newSubnode(readString(in)));
+		}
+	}
+
+	private static void readEntry(DataInputStream in, DBElement node) throws IOException {
+		String key = readString(in);
+		byte tag = in.readByte();
+
+		switch (tag) {
+			case INTEGER_TAG:
+				node.setEntry(key, in.readInt());
+
+				break;
+
+			case INTEGER_ARR_TAG:
+				int[] tmp_i = new int[in.readInt()];
+
+				for (int i = 0; i < tmp_i.length; i++) {
+					tmp_i[i] = in.readInt();
+				}
+				node.setEntry(key, tmp_i);
+
+				break;
+
+			case LONG_TAG:
+				node.setEntry(key, in.readLong());
+
+				break;
+
+			case LONG_ARR_TAG:
+				long[] tmp_l = new long[in.readInt()];
+
+				for (int i = 0; i < tmp_l.length; i++) {
+					tmp_l[i] = in.readLong();
+				}
+				node.setEntry(key, tmp_l);
+
+				break;
+
+			case STRING_TAG:
+				node.setEntry(key, readString(in));
+
+				break;
+
+			case STRING_ARR_TAG:
+				String[] tmp_s = new String[in.readInt()];
+
+				for (int i = 0; i < tmp_s.length; i++) {
+					tmp_s[i] = readString(in);
+				}
+				node.setEntry(key, tmp_s);
+
+				break;
+
+			case DOUBLE_TAG:
+				node.setEntry(key, in.readDouble());
+
+				break;
+
+			case DOUBLE_ARR_TAG:
+				double[] tmp_f = new double[in.readInt()];
+
+				for (int i = 0; i < tmp_f.length; i++) {
+					tmp_f[i] = in.readDouble();
+				}
+				node.setEntry(key, tmp_f);
+
+				break;
+
+			case BOOLEAN_TAG:
+				node.setEntry(key, in.readBoolean());
+
+				break;
+
+			case BOOLEAN_ARR_TAG:
+				boolean[] tmp_b = new boolean[in.readInt()];
+
+				for (int i = 0; i < tmp_b.length; i++) {
+					tmp_b[i] = in.readBoolean();
+				}
+				node.setEntry(key, tmp_b);
+
+				break;
+
+			case XML_TAG:
+				DomBuilderHandler handler = new DomBuilderHandler(DBElementFactory.getFactory());
+				char[] data = readString(in).toCharArray();
+
+				new SimpleParser().parse(handler, data, 0, data.length);
+
+				Element entry = handler.getParsedElements().poll();
+
+				if (entry instanceof DBElement) {
+					node.replaceEntry((DBElement) entry);
+				}
+
+				break;
+
+			default:
+				throw new IOException("Unknown entry type tag: " + tag);
+		}    // end of switch (tag)
+	}
+
+	static void writeNode(DataOutputStream out, DBElement node) throws IOException {
+		writeString(out, node.getAttributeStaticStr(DBElement.NAME));
+
+		DBElement map = (DBElement) node.getChild(DBElement.MAP);
+		List<DBElement> entries = (map != null) ? getElements(map, DBElement.ENTRY) : new ArrayList<DBElement>();
+
+		out.writeInt(entries.size());
+		for (DBElement entry : entries) {
+			writeEntry(out, entry);
+		}
+
+		List<DBElement> subnodes = getElements(node, DBElement.NODE);
+
+		out.writeInt(subnodes.size());
+		for (DBElement subnode : subnodes) {
+			writeNode(out, subnode);
+		}
+	}
+
+	private static void writeEntry(DataOutputStream out, DBElement entry) throws IOException {
+		Object value = entry.getValue();
+
+		writeString(out, entry.getAttributeStaticStr(DBElement.KEY));
+		if (value == null) {
+			out.writeByte(XML_TAG);
+			writeString(out, entry.formatedString(0, 0));
+
+			return;
+		}
+		switch (Types.DataType.valueof(entry.getAttributeStaticStr(DBElement.TYPE))) {
+			case INTEGER:
+				out.writeByte(INTEGER_TAG);
+				out.writeInt((Integer) value);
+
+				break;
+
+			case INTEGER_ARR:
+				out.writeByte(INTEGER_ARR_TAG);
+				out.writeInt(((int[]) value).length);
+				for (int val : (int[]) value) {
+					out.writeInt(val);
+				}
+
+				break;
+
+			case LONG:
+				out.writeByte(LONG_TAG);
+				out.writeLong((Long) value);
+
+				break;
+
+			case LONG_ARR:
+				out.writeByte(LONG_ARR_TAG);
+				out.writeInt(((long[]) value).length);
+				for (long val : (long[]) value) {
+					out.writeLong(val);
+				}
+
+				break;
+
+			case STRING_ARR:
+				out.writeByte(STRING_ARR_TAG);
+				out.writeInt(((String[]) value).length);
+				for (String val : (String[]) value) {
+					writeString(out, val);
+				}
+
+				break;
+
+			case DOUBLE:
+				out.writeByte(DOUBLE_TAG);
+				out.writeDouble((Double) value);
+
+				break;
+
+			case DOUBLE_ARR:
+				out.writeByte(DOUBLE_ARR_TAG);
+				out.writeInt(((double[]) value).length);
+				for (double val : (double[]) value) {
+					out.writeDouble(val);
+				}
+
+				break;
+
+			case BOOLEAN:
+				out.writeByte(BOOLEAN_TAG);
+				out.writeBoolean((Boolean) value);
+
+				break;
+
+			case BOOLEAN_ARR:
+				out.writeByte(BOOLEAN_ARR_TAG);
+				out.writeInt(((boolean[]) value).length);
+				for (boolean val : (boolean[]) value) {
+					out.writeBoolean(val);
+				}
+
+				break;
+
+			case STRING:
+			default:
+				out.writeByte(STRING_TAG);
+				writeString(out, value.toString());
+
+				break;
+		}    // end of switch (type)
+	}
+
+	/**
+	 * Returns element children with the given name, or all element children if name is <code>null</code>
+	 */
+	private static List<DBElement> getElements(DBElement parent, String name) {
+		List<DBElement> result = new ArrayList<DBElement>();
+
+		parent.forEachChild(child -> {
+			if ((child instanceof DBElement) && ((name == null) || (child.getName() == name))) {
+				result.add((DBElement) child);
+			}
+		});
+
+		return result;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int len = in.readInt();
+
+		if (len < 0) {
+			return null;
+		}
+
+		byte[] data = new byte[len];
+
+		in.readFully(data);
+
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+
+			return;
+		}
+
+		byte[] data = value.getBytes(StandardCharsets.UTF_8);
+
+		out.writeInt(data.length);
+		out.write(data);
+	}
+}    // XMLDBBinary
@@ -0,0 +1,115 @@
+/*
+ * Tigase XML Tools - Tigase XML Tools
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xml.db;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <code>XMLDBBulkLoader</code> adds many new nodes with their data to the database at once, for example when user
+ * base is migrated. Nodes are built outside of the database without any locking or journaling, and
+ * {@link #commit()} adds all of them under a single lock acquisition, updates indexes once for each node and writes
+ * the database file once. Loader is created by {@link XMLDB#newBulkLoader()} and is not thread safe.
+ */
+public class XMLDBBulkLoader {
+
+	private final XMLDB db;
+	private final Map<String, DBElement> node1s = new LinkedHashMap<String, DBElement>();
+
+	XMLDBBulkLoader(XMLDB db) {
+		this.db = db;
+	}
+
+	/**
+	 * Adds new node, adding the same node again has no effect
+	 *
+	 * @param node1_id name of the node to add
+	 *
+	 * @return this loader
+	 */
+	public XMLDBBulkLoader addNode1(String node1_id) {
+		getNode1(node1_id);
+
+		return this;
+	}
+
+	/**
+	 * Sets data for the given node at given path, node is added if it has not been added yet
+	 *
+	 * @param node1_id name of the node
+	 * @param subnode path to the node
+	 * @param key under which save the data
+	 * @param value actual value to be saved
+	 *
+	 * @return this loader
+	 */
+	public XMLDBBulkLoader setData(String node1_id, String subnode, String key, Object value) {
+		DBElement node1 = getNode1(node1_id);
+		DBElement node = (subnode == null) ? node1 : node1.buildNodesTree(subnode);
+
+		node.setEntry(key, value);
+
+		return this;
+	}
+
+	/**
+	 * Sets data for the given node at root, node is added if it has not been added yet
+	 *
+	 * @param node1_id name of the node
+	 * @param key under which save the data
+	 * @param value actual value to be saved
+	 *
+	 * @return this loader
+	 */
+	public XMLDBBulkLoader setData(String node1_id, String key, Object value) {
+		return setData(node1_id, null, key, value);
+	}
+
+	/**
+	 * Returns number of nodes waiting to be added
+	 *
+	 * @return number of nodes
+	 */
+	public int size() {
+		return node1s.size();
+	}
+
+	/**
+	 * Adds all nodes to the database and writes the database file. Loader is empty afterwards and may be reused.
+	 *
+	 * @throws NodeExistsException when any of the nodes already exists in the database, no node is added then
+	 * @throws IOException when the database file can not be written, nodes are added to the database anyway
+	 */
+	public void commit() throws NodeExistsException, IOException {
+		db.attachNode1s(node1s);
+		node1s.clear();
+		db.flush();
+	}
+
+	private DBElement getNode1(String node1_id) {
+		DBElement node1 = node1s.get(node1_id);
+
+		if (node1 == null) {
+			node1 = db.newNode1(node1_id);
+			node1s.put(node1_id, node1);
+		}
+
+		return node1;
+	}
+}    // XMLDBBulkLoader
@@ -0,0 +1,180 @@
+/*
+ * Tigase XML Tools - Tigase XML Tools
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xml.db;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * <code>XMLDBIndex</code> is a secondary index of values stored under one key at one subnode path of all node1s,
+ * mapping each value to names of node1s which have it. Each item of a list value is indexed separately. Index is not
+ * thread safe, it is maintained by {@link XMLDB} under its write lock and read under its read lock.
+ */
+class XMLDBIndex {
+
+	private final String key;
+	private final Map<String, Object> node1Values = new HashMap<String, Object>();
+	private final String subnode;
+	private final Map<Object, Set<String>> values = new HashMap<Object, Set<String>>();
+
+	/**
+	 * Returns path with empty segments and slashes at both ends removed, so equivalent paths are equal
+	 *
+	 * @param subnode path to the node
+	 *
+	 * @return normalized path or <code>null</code> for node1 level
+	 */
+	static String normalizePath(String subnode) {
+		if (subnode == null) {
+			return null;
+		}
+
+		StringTokenizer strtok = new StringTokenizer(subnode, "/", false);
+		StringBuilder result = new StringBuilder(subnode.length());
+
+		while (strtok.hasMoreTokens()) {
+			if (result.length() > 0) {
+				result.append('/');
+			}
+			result.append(strtok.nextToken());
+		}
+
+		return (result.length() > 0) ? result.toString() : null;
+	}
+
+	/**
+	 * Calls the predicate for the value or for each item of the list value until it matches
+	 *
+	 * @return <code>true</code> if value or any of its items matches
+	 */
+	static boolean matches(Object value, Predicate<Object> predicate) {
+		if (value == null) {
+			return false;
+		}
+		if (value.getClass().isArray()) {
+			for (int i = 0, length = Array.getLength(value); i < length; i++) {
+				if (predicate.test(Array.get(value, i))) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		return predicate.test(value);
+	}
+
+	/**
+	 * @param subnode normalized path to the node
+	 * @param key name of the key
+	 */
+	XMLDBIndex(String subnode, String key) {
+		this.subnode = subnode;
+		this.key = key;
+	}
+
+	String getKey() {
+		return key;
+	}
+
+	String getSubnode() {
+		return subnode;
+	}
+
+	/**
+	 * Checks whether the index covers the subnode itself or any node under it
+	 *
+	 * @param path normalized path of the removed node
+	 */
+	boolean isUnder(String path) {
+		return (subnode != null) &&
+				(subnode.equals(path) || (subnode.startsWith(path) && (subnode.charAt(path.length()) == '/')));
+	}
+
+	/**
+	 * Replaces value indexed for the node1
+	 *
+	 * @param node1_id name of the node
+	 * @param value new value or <code>null</code> if it was removed
+	 */
+	void update(String node1_id, Object value) {
+		Object old = (value != null) ? node1Values.put(node1_id, value) : node1Values.remove(node1_id);
+
+		if (old != null) {
+			forEachItem(old, item -> {
+				Set<String> node1s = values.get(item);
+
+				if (node1s != null) {
+					node1s.remove(node1_id);
+					if (node1s.isEmpty()) {
+						values.remove(item);
+					}
+				}
+			});
+		}
+		if (value != null) {
+			forEachItem(value, item -> values.computeIfAbsent(item, k -> new LinkedHashSet<String>()).add(node1_id));
+		}
+	}
+
+	void remove(String node1_id) {
+		update(node1_id, null);
+	}
+
+	/**
+	 * Returns names of node1s having the value, or any list item equal to the value
+	 */
+	List<String> find(Object value) {
+		Set<String> node1s = values.get(value);
+
+		return (node1s != null) ? new ArrayList<String>(node1s) : new ArrayList<String>();
+	}
+
+	/**
+	 * Returns names of node1s having a value matching the predicate, which is called once for each distinct value
+	 */
+	List<String> find(Predicate<Object> predicate) {
+		Set<String> result = new LinkedHashSet<String>();
+
+		for (Map.Entry<Object, Set<String>> entry : values.entrySet()) {
+			if (predicate.test(entry.getKey())) {
+				result.addAll(entry.getValue());
+			}
+		}
+
+		return new ArrayList<String>(result);
+	}
+
+	private static void forEachItem(Object value, Consumer<Object> action) {
+		if (value.getClass().isArray()) {
+			for (int i = 0, length = Array.getLength(value); i < length; i++) {
+				action.accept(Array.get(value, i));
+			}
+		} else {
+			action.accept(value);
+		}
+	}
+}    // XMLDBIndex
@@ -0,0 +1,85 @@
+/*
+ * Tigase XML Tools - Tigase XML Tools
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xml;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ElementPathTest {
+
+	private static Element createIq() {
+		Element iq = new Element("iq", new String[]{"type"}, new String[]{"result"});
+		Element first = new Element("query");
+		Element roster = new Element("query");
+
+		first.setXMLNS("jabber:iq:private");
+		first.addChild(new Element("item", new String[]{"jid"}, new String[]{"private@example.com"}));
+		roster.setXMLNS("jabber:iq:roster");
+		roster.addChild(new Element("item", new String[]{"jid", "subscription"},
+									new String[]{"a@example.com", "none"}));
+		roster.addChild(new Element("item", "Friends", new String[]{"jid", "subscription"},
+									new String[]{"b@example.com", "both"}));
+		iq.addChild(first);
+		iq.addChild(roster);
+
+		return iq;
+	}
+
+	@Test
+	public void testEvaluate() {
+		Element iq = createIq();
+
+		assertSame(iq, ElementPath.compile("iq").evaluate(iq));
+		assertEquals("private@example.com",
+					 iq.findChild(ElementPath.compile("/iq/query/item")).getAttributeStaticStr("jid"));
+		assertEquals("b@example.com",
+					 iq.findChild(ElementPath.compile("iq/query[@xmlns='jabber:iq:roster']/item[@subscription='both']"))
+							 .getAttributeStaticStr("jid"));
+		assertEquals("Friends", iq.getChildCData(ElementPath.compile("iq/*/item[@subscription=\"both\"]")));
+		assertEquals(2, iq.getChildren(ElementPath.compile("iq[@type='result']/query[@xmlns='jabber:iq:roster']"))
+				.size());
+		assertTrue(ElementPath.compile("iq/query/item[@subscription]").matches(iq));
+		assertNull(iq.findChild(ElementPath.compile("iq/query/item[@subscription='from']")));
+		assertNull(iq.findChild(ElementPath.compile("message/body")));
+		assertNull(iq.findChild(ElementPath.compile("iq[@type='get']/query")));
+	}
+
+	@Test
+	public void testInheritedNamespace() {
+		Element message = new Element("message");
+		Element body = new Element("body", "Hi");
+
+		message.setXMLNS("jabber:client");
+		body.setDefXMLNS("jabber:client");
+		message.addChild(body);
+		assertEquals("Hi", message.getChildCData(ElementPath.compile("message/body[@xmlns='jabber:client']")));
+	}
+
+	@Test
+	public void testInvalidPaths() {
+		for (String path : new String[]{"", "iq//query", "iq/", "iq[type='a']", "iq[@type='a'", "iq[@type=a]",
+										"iq[@type='a']x"}) {
+			try {
+				ElementPath.compile(path);
+				fail("Path should be invalid: " + path);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+}
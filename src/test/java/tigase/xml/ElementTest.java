@@ -20,8 +20,13 @@ package tigase.xml;
 import junit.framework.TestCase;
 import org.junit.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * Simple tests for Element class
@@ -383,6 +388,113 @@ public class ElementTest
 		assertNull(parent.getChild("child"));
 	}
 
+	@Test
+	public void testCDataMerging() {
+		Element body = new Element("body");
+
+		assertNull(body.getCData());
+		body.addCData("Hello");
+		body.addCData(", ");
+		body.addCData("world");
+		assertEquals("Hello, world", body.getCData());
+		assertSame(body.getCData(), body.getCData());
+		assertEquals("<body>Hello, world</body>", body.toString());
+
+		body.addChild(new Element("br"));
+		body.addCData("!");
+		assertEquals("Hello, world!", body.getCData());
+		assertSame(body.getCData(), body.getCData());
+		assertEquals("<body>Hello, world<br/>!</body>", body.toString());
+
+		body.setCData("Bye");
+		assertEquals("Bye!", body.getCData());
+		body.removeChild(body.getChild("br"));
+		assertEquals("Bye!", body.getCData());
+	}
+
+	@Test
+	public void testChildrenIterator() {
+		Element elem = new Element("parent");
+
+		assertFalse(elem.childrenIterator().hasNext());
+		assertEquals(0, elem.getChildrenCount());
+		elem.addCData("text");
+		elem.addChild(new Element("a"));
+		elem.addCData("more");
+		elem.addChild(new Element("b"));
+		elem.addChild(new Element("c", new String[]{"type"}, new String[]{"x"}));
+
+		Iterator<Element> it = elem.childrenIterator();
+
+		assertEquals("a", it.next().getName());
+		assertEquals("b", it.next().getName());
+		assertEquals("c", it.next().getName());
+		assertFalse(it.hasNext());
+		assertEquals(3, elem.getChildrenCount());
+		assertEquals(Arrays.asList("a", "b", "c"),
+					 elem.streamChildren().map(Element::getName).collect(Collectors.toList()));
+
+		List<String> names = new ArrayList<String>();
+
+		elem.forEachChild(child -> child.getAttributeStaticStr("type") != null, child -> names.add(child.getName()));
+		assertEquals(Arrays.asList("c"), names);
+	}
+
+	@Test
+	public void testEqualsAndHashCode() {
+		Element first = new Element("item", "text", new String[]{"a", "b"}, new String[]{"1", "2"});
+		Element second = new Element("item", new String[]{"b", "a"}, new String[]{"2", "1"});
+
+		second.addCData("te");
+		second.addCData("xt");
+		second.addChild(new Element("child"));
+		assertEquals(first, second);
+		assertEquals(first.hashCode(), second.hashCode());
+		assertEquals(0, first.compareTo(second));
+
+		second.setAttribute("b", "3");
+		assertFalse(first.equals(second));
+		assertTrue(first.compareTo(second) < 0);
+		assertTrue(second.compareTo(first) > 0);
+		second.setAttribute("b", "2");
+		assertEquals(first.hashCode(), second.hashCode());
+
+		first.setCData("other");
+		assertFalse(first.equals(second));
+		assertFalse(first.hashCode() == second.hashCode());
+		assertTrue(first.compareTo(second) < 0);
+
+		Element noAttrs = new Element("item", "other");
+
+		assertFalse(first.equals(noAttrs));
+		assertTrue(noAttrs.compareTo(first) < 0);
+		assertTrue(new Element("a").compareTo(new Element("b")) < 0);
+		assertEquals(new Element("empty"), new Element("empty", ""));
+	}
+
+	@Test
+	public void testRemoveChildByIdentity() {
+		Element elem = new Element("parent");
+		Element first = new Element("item", "text", new String[]{"id"}, new String[]{"1"});
+		Element second = first.clone();
+
+		elem.addChild(first);
+		elem.addChild(second);
+		assertTrue(elem.removeChildInstance(second));
+		assertSame(first, elem.getChildren().get(0));
+		assertEquals(1, elem.getChildren().size());
+
+		// Child equal to the removed one is not removed in its place
+		assertFalse(elem.removeChildInstance(second));
+		assertSame(first, elem.getChild("item"));
+
+		// removeChild() removes the first child equal to the given one
+		elem.addChild(second);
+		assertTrue(elem.removeChild(second));
+		assertSame(second, elem.getChild("item"));
+		assertEquals(1, elem.getChildren().size());
+	}
+
 	/**
 	 * Test of setAttribute method, of class Element.
 	 */
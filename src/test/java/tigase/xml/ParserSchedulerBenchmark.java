@@ -0,0 +1,100 @@
+/*
+ * Tigase XML Tools - Tigase XML Tools
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xml;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput benchmark for <code>ParserScheduler</code>. Parses the same set of stanzas for many connections using
+ * pools of 1, 2, 4, ... threads up to the number of available processors and prints number of stanzas parsed per
+ * second for each pool size. It is not run as a part of the test suite, run it with:
+ * <pre>{@code java tigase.xml.ParserSchedulerBenchmark [connections] [stanzas per connection]}</pre>
+ */
+public class ParserSchedulerBenchmark {
+
+	private static final String STANZA =
+			"<message to=\"user@example.com/res\" from=\"other@example.com/res\" type=\"chat\" id=\"%d\">" +
+					"<body>Hello, this is message number %d sent over the connection</body>" +
+					"<active xmlns=\"http://jabber.org/protocol/chatstates\"/></message>";
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int stanzas = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		char[][] buffers = new char[stanzas][];
+
+		for (int i = 0; i < stanzas; i++) {
+			buffers[i] = String.format(STANZA, i, i).toCharArray();
+		}
+
+		int cpus = Runtime.getRuntime().availableProcessors();
+
+		// warm up
+		run(cpus, connections, stanzas, buffers);
+		for (int threads = 1; ; threads = Math.min(threads * 2, cpus)) {
+			long time = run(threads, connections, stanzas, buffers);
+			long total = (long) connections * stanzas;
+
+			System.out.printf("threads: %3d, stanzas: %d, time: %6d ms, stanzas/s: %d%n", threads, total,
+							  TimeUnit.NANOSECONDS.toMillis(time), total * TimeUnit.SECONDS.toNanos(1) / time);
+			if (threads == cpus) {
+				break;
+			}
+		}
+	}
+
+	private static long run(int threads, int connections, int stanzas, char[][] buffers) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch latch = new CountDownLatch(connections * stanzas);
+		final AtomicLong errors = new AtomicLong();
+		ParserScheduler.StanzaSink<Integer> sink = new ParserScheduler.StanzaSink<Integer>() {
+			@Override
+			public void stanza(Integer connection, Element element) {
+				latch.countDown();
+			}
+
+			@Override
+			public void error(Integer connection, String errorMessage) {
+				errors.incrementAndGet();
+			}
+		};
+		ParserScheduler<Integer> scheduler = new ParserScheduler<Integer>(new SimpleParser(), executor, null, sink);
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < stanzas; i++) {
+			for (int c = 0; c < connections; c++) {
+				scheduler.submit(c, buffers[i]);
+			}
+		}
+		latch.await();
+
+		long time = System.nanoTime() - start;
+
+		executor.shutdown();
+		if (errors.get() > 0) {
+			throw new IllegalStateException("Parse errors: " + errors.get());
+		}
+
+		return time;
+	}
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Tigase XML Tools - Tigase XML Tools
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xml;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ParserSchedulerTest {
+
+	@Test
+	public void testPerConnectionOrder() throws Exception {
+		final int connections = 16;
+		final int stanzas = 200;
+		final Map<Integer, List<String>> received = new ConcurrentHashMap<Integer, List<String>>();
+		final CountDownLatch latch = new CountDownLatch(connections * stanzas);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		ParserScheduler.StanzaSink<Integer> sink = new ParserScheduler.StanzaSink<Integer>() {
+			@Override
+			public void stanza(Integer connection, Element element) {
+				received.get(connection).add(element.getAttributeStaticStr("id"));
+				latch.countDown();
+			}
+
+			@Override
+			public void error(Integer connection, String errorMessage) {
+				fail(errorMessage);
+			}
+		};
+		ParserScheduler<Integer> scheduler = new ParserScheduler<Integer>(new SimpleParser(), executor, null, sink);
+
+		for (int c = 0; c < connections; c++) {
+			received.put(c, Collections.synchronizedList(new ArrayList<String>()));
+		}
+		for (int i = 0; i < stanzas; i++) {
+			for (int c = 0; c < connections; c++) {
+				String stanza = "<message id=\"" + i + "\"><body>test " + c + "</body></message>";
+				int split = stanza.length() / 2;
+
+				// stanzas are split in two buffers to check that parser state is kept between them
+				scheduler.submit(c, stanza.substring(0, split).toCharArray());
+				scheduler.submit(c, stanza.substring(split).toCharArray());
+			}
+		}
+
+		assertTrue(latch.await(30, TimeUnit.SECONDS));
+		executor.shutdown();
+		for (int c = 0; c < connections; c++) {
+			List<String> ids = received.get(c);
+
+			assertEquals(stanzas, ids.size());
+			for (int i = 0; i < stanzas; i++) {
+				assertEquals(String.valueOf(i), ids.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void testSubmitAfterClose() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch latch = new CountDownLatch(3);
+		final AtomicInteger active = new AtomicInteger();
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		ParserScheduler.StanzaSink<String> sink = new ParserScheduler.StanzaSink<String>() {
+			@Override
+			public void stanza(String connection, Element element) {
+				if (active.incrementAndGet() != 1) {
+					received.add("concurrent");
+				}
+				received.add(element.getAttributeStaticStr("id"));
+				if ("1".equals(element.getAttributeStaticStr("id"))) {
+					blocked.countDown();
+					try {
+						release.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				active.decrementAndGet();
+				latch.countDown();
+			}
+
+			@Override
+			public void error(String connection, String errorMessage) {
+				fail(errorMessage);
+			}
+		};
+		ParserScheduler<String> scheduler = new ParserScheduler<String>(new SimpleParser(), executor, null, sink);
+
+		scheduler.submit("conn", "<message id=\"1\"/>".toCharArray());
+		assertTrue(blocked.await(10, TimeUnit.SECONDS));
+		scheduler.close("conn");
+		scheduler.submit("conn", "<message id=\"2\"/>".toCharArray());
+		scheduler.submit("conn", "<message id=\"3\"/>".toCharArray());
+
+		// new stream of the connection can't be parsed until the closed one is finished
+		Thread.sleep(100);
+		assertEquals(Collections.singletonList("1"), received);
+		release.countDown();
+
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		executor.shutdown();
+		assertEquals(Arrays.asList("1", "2", "3"), received);
+		assertEquals(1, scheduler.getConnectionsCount());
+	}
+
+	@Test
+	public void testConcurrentCloseAndSubmit() throws Exception {
+		final int connections = 8;
+		final int stanzas = 20000;
+		final Map<Integer, AtomicInteger> active = new ConcurrentHashMap<Integer, AtomicInteger>();
+		final AtomicBoolean concurrent = new AtomicBoolean(false);
+		final Map<Integer, List<String>> received = new ConcurrentHashMap<Integer, List<String>>();
+		final CountDownLatch latch = new CountDownLatch(connections * stanzas);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		ParserScheduler.StanzaSink<Integer> sink = new ParserScheduler.StanzaSink<Integer>() {
+			@Override
+			public void stanza(Integer connection, Element element) {
+				if (active.get(connection).incrementAndGet() != 1) {
+					concurrent.set(true);
+				}
+				received.get(connection).add(element.getAttributeStaticStr("id"));
+				active.get(connection).decrementAndGet();
+				latch.countDown();
+			}
+
+			@Override
+			public void error(Integer connection, String errorMessage) {
+				fail(errorMessage);
+			}
+		};
+		final ParserScheduler<Integer> scheduler = new ParserScheduler<Integer>(new SimpleParser(), executor, null,
+																				sink);
+		List<Thread> threads = new ArrayList<Thread>();
+
+		// each connection is closed over and over while data is submitted for it
+		for (int c = 0; c < connections; c++) {
+			final int connection = c;
+			final AtomicBoolean submitting = new AtomicBoolean(true);
+
+			active.put(c, new AtomicInteger());
+			received.put(c, Collections.synchronizedList(new ArrayList<String>()));
+			threads.add(new Thread(() -> {
+				while (submitting.get()) {
+					scheduler.close(connection);
+				}
+			}));
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < stanzas; i++) {
+					scheduler.submit(connection, ("<message id=\"" + i + "\"/>").toCharArray());
+				}
+				submitting.set(false);
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(latch.await(60, TimeUnit.SECONDS));
+		executor.shutdown();
+		assertFalse(concurrent.get());
+		for (int c = 0; c < connections; c++) {
+			List<String> ids = received.get(c);
+
+			assertEquals(stanzas, ids.size());
+			for (int i = 0; i < stanzas; i++) {
+				assertEquals(String.valueOf(i), ids.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void testError() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final List<Element> parsed = Collections.synchronizedList(new ArrayList<Element>());
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		ParserScheduler.StanzaSink<String> sink = new ParserScheduler.StanzaSink<String>() {
+			@Override
+			public void stanza(String connection, Element element) {
+				parsed.add(element);
+			}
+
+			@Override
+			public void error(String connection, String errorMessage) {
+				latch.countDown();
+			}
+		};
+		ParserScheduler<String> scheduler = new ParserScheduler<String>(new SimpleParser(), executor, null, sink);
+
+		scheduler.submit("conn", "<message><bo\u0001dy/></message>".toCharArray());
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		scheduler.submit("conn", "<message/>".toCharArray());
+		scheduler.close("conn");
+
+		// data submitted after the error has to be processed before it can be checked that it was ignored
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertTrue(parsed.isEmpty());
+	}
+
+	@Test
+	public void testFailingSink() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		Executor executor = task -> {
+			runs.incrementAndGet();
+			task.run();
+		};
+		ParserScheduler.StanzaSink<String> sink = new ParserScheduler.StanzaSink<String>() {
+			@Override
+			public void stanza(String connection, Element element) {
+				throw new IllegalStateException("stanza");
+			}
+
+			@Override
+			public void error(String connection, String errorMessage) {
+				errors.incrementAndGet();
+				throw new IllegalStateException("error");
+			}
+		};
+		ParserScheduler<String> scheduler = new ParserScheduler<String>(new SimpleParser(), executor, null, sink);
+
+		scheduler.submit("conn", "<message/>".toCharArray());
+		scheduler.submit("conn", "<message><bo\u0001dy/></message>".toCharArray());
+		scheduler.submit("conn", "<message/>".toCharArray());
+
+		// connection is scheduled again for each buffer even though the sink failed
+		assertEquals(3, runs.get());
+		assertEquals(1, errors.get());
+	}
+
+}
@@ -21,6 +21,11 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Queue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -300,6 +305,50 @@ public class SimpleParserTest {
 
 	}
 
+	@Test
+	public void testParseFile() throws Exception {
+		StringBuilder body = new StringBuilder();
+
+		// content longer than parser file buffers with multi-byte characters split between reads
+		while (body.length() < 700 * 1024) {
+			body.append("zażółć gęślą jaźń \uD83D\uDE00 ");
+		}
+
+		File file = File.createTempFile("simple-parser", ".xml");
+
+		try {
+			try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+				writer.write("<?xml version='1.0' encoding='UTF-8'?>\n<root><message id=\"1\"><body>" + body +
+									 "</body></message></root>");
+			}
+
+			DomBuilderHandler handler = new DomBuilderHandler();
+
+			parser.parse(handler, file);
+
+			Element root = handler.getParsedElements().poll();
+
+			assertNotNull(root);
+			assertEquals(body.toString(), root.getChild("message").getChild("body").getCData());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testParseEmptyFile() throws Exception {
+		File file = File.createTempFile("simple-parser", ".xml");
+
+		try {
+			DomBuilderHandler handler = new DomBuilderHandler();
+
+			parser.parse(handler, file);
+			assertTrue(handler.getParsedElements().isEmpty());
+		} finally {
+			file.delete();
+		}
+	}
+
 	protected boolean checkIsCharValidInXML(char chr) {
 		return (chr == 0x09 || chr == 0x0a || chr == 0x0d || (chr >= 0x20 && chr <= 0xD7FF) ||
 				(chr >= 0xE000 && chr <= 0xFFFD) || (chr >= 0x10000 && chr <= 0x10FFFF));
@@ -0,0 +1,205 @@
+/*
+ * Tigase XML Tools - Tigase XML Tools
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xml.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ShardedXMLDBTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void enableJournal() {
+		System.setProperty(XMLDB.JOURNAL_ENABLED_PROP_KEY, "true");
+	}
+
+	@After
+	public void clearJournal() {
+		System.clearProperty(XMLDB.JOURNAL_ENABLED_PROP_KEY);
+	}
+
+	@Test
+	public void testShards() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		ShardedXMLDB db = ShardedXMLDB.createDB(file, "root", "node", 4);
+		List<String> users = new ArrayList<String>();
+
+		for (int i = 0; i < 100; i++) {
+			String user = "user" + i + "@example.com";
+
+			users.add(user);
+			db.addNode1(user);
+			db.setData(user, "vcard", "name", "User " + i);
+			db.setData(user, "logins", i);
+		}
+		Collections.sort(users);
+		assertEquals(100, db.getAllNode1sCount());
+		assertEquals(users, db.getAllNode1sSorted());
+		for (int i = 0; i < 4; i++) {
+			assertTrue(new File(file + ".shard" + i).exists());
+		}
+		db.removeNode1("user0@example.com");
+		db.apply(new XMLDBBatch().setData("user1@example.com", "key", "value")
+						 .setData("user2@example.com", "key", "value"));
+		db.close();
+
+		XMLDB loaded = new ShardedXMLDB(file, 4);
+
+		assertEquals(99, loaded.getAllNode1sCount());
+		assertNull(loaded.findNode1("user0@example.com"));
+		assertEquals("User 42", loaded.getData("user42@example.com", "vcard", "name"));
+		assertEquals(42, loaded.getDataInt("user42@example.com", null, "logins", 0));
+		assertEquals("value", loaded.getData("user2@example.com", "key"));
+		try {
+			loaded.addNode1("user1@example.com");
+			fail("Node1 exists in its shard");
+		} catch (NodeExistsException e) {
+		}
+	}
+
+	@Test
+	public void testBackup() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		String backupFile = new File(folder.getRoot(), "backup.xml").getPath();
+		ShardedXMLDB db = ShardedXMLDB.createDB(file, "root", "node", 3);
+
+		for (int i = 0; i < 30; i++) {
+			db.addNode1("user" + i);
+			db.setData("user" + i, "vcard", "name", "User " + i);
+		}
+		db.backup(backupFile);
+		db.setData("user7", "vcard", "name", "Changed");
+		db.removeNode1("user8");
+
+		XMLDB backup = new ShardedXMLDB(backupFile, 3);
+
+		assertEquals(30, backup.getAllNode1sCount());
+		assertEquals("User 7", backup.getData("user7", "vcard", "name"));
+		assertEquals("User 8", backup.getData("user8", "vcard", "name"));
+		for (int i = 0; i < 3; i++) {
+			assertFalse(new File(backupFile + ".shard" + i + ".tmp").exists());
+		}
+	}
+
+	@Test
+	public void testBulkLoaderWithConcurrentAdds() throws Exception {
+		ShardedXMLDB db = ShardedXMLDB.createDB("memory://db.xml", "root", "node", 4);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try {
+			for (int round = 0; round < 20; round++) {
+				String prefix = "round" + round + "-";
+				XMLDBBulkLoader loader = db.newBulkLoader();
+
+				for (int i = 0; i < 50; i++) {
+					loader.addNode1(prefix + i);
+				}
+
+				Future<Integer> adds = executor.submit(() -> {
+					int added = 0;
+
+					for (int i = 49; i >= 0; i--) {
+						try {
+							db.addNode1(prefix + i);
+							added++;
+						} catch (NodeExistsException e) {
+						}
+					}
+
+					return added;
+				});
+				boolean committed;
+
+				try {
+					loader.commit();
+					committed = true;
+				} catch (NodeExistsException e) {
+					committed = false;
+				}
+
+				int added = adds.get(60, TimeUnit.SECONDS);
+
+				// Either whole load or none of it, never a node1 in two shards or twice in one
+				assertEquals(committed ? 0 : 50, added);
+				assertEquals(50 * (round + 1), db.getAllNode1sCount());
+				assertEquals(50 * (round + 1), db.getAllNode1sSorted().size());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testOrderedScans() throws Exception {
+		ShardedXMLDB db = ShardedXMLDB.createDB("memory://db.xml", "root", "node", 3);
+
+		for (String user : new String[]{"b@x", "a@x", "ab@y", "c@x", "abc@z", "a\uffff@x"}) {
+			db.addNode1(user);
+		}
+
+		List<String> all = new ArrayList<String>();
+
+		db.iterateNode1s(null, null).forEachRemaining(all::add);
+		assertEquals(Arrays.asList("a@x", "ab@y", "abc@z", "a\uffff@x", "b@x", "c@x"), all);
+
+		List<String> prefixed = new ArrayList<String>();
+
+		db.iterateNode1sWithPrefix("ab").forEachRemaining(prefixed::add);
+		assertEquals(Arrays.asList("ab@y", "abc@z"), prefixed);
+		assertEquals(Arrays.asList("a@x", "ab@y"), db.getNode1sPage("a", null, 2));
+		assertEquals(Arrays.asList("abc@z", "a\uffff@x"), db.getNode1sPage("a", "ab@y", 2));
+		assertEquals(Collections.emptyList(), db.getNode1sPage("a", "a\uffff@x", 2));
+		assertEquals(Arrays.asList("b@x", "c@x"), db.getNode1sPage(null, "a\uffff@x", 10));
+	}
+
+	@Test
+	public void testOnlyModifiedShardIsDirty() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		ShardedXMLDB db = ShardedXMLDB.createDB(file, "root", "node", 4);
+
+		db.addNode1("user");
+		db.sync();
+		assertFalse(db.isDirty());
+		db.setData("user", "key", "value");
+		assertTrue(db.getShard("user").isDirty());
+		for (int i = 0; i < 100; i++) {
+			XMLDB shard = db.getShard("other" + i);
+
+			if (shard != db.getShard("user")) {
+				assertFalse(shard.isDirty());
+			}
+		}
+	}
+}
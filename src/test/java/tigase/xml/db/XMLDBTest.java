@@ -0,0 +1,941 @@
+/*
+ * Tigase XML Tools - Tigase XML Tools
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xml.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+import static org.junit.Assert.*;
+
+public class XMLDBTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void enableJournal() {
+		System.setProperty(XMLDB.JOURNAL_ENABLED_PROP_KEY, "true");
+	}
+
+	@After
+	public void clearJournal() {
+		System.clearProperty(XMLDB.JOURNAL_ENABLED_PROP_KEY);
+	}
+
+	@Test
+	public void testJournalReplay() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		assertTrue(db.isJournalEnabled());
+		db.addNode1("user1@example.com");
+		db.addNode1("user2@example.com");
+		db.setData("user1@example.com", "password", "secret & <pass>");
+		db.setData("user1@example.com", "roster/user2", "groups", new String[]{"friends", "work"});
+		db.setData("user1@example.com", "counter", 1);
+		db.setData("user1@example.com", "counter", 2);
+		db.setData("user2@example.com", "settings", "lang", "pl");
+		db.removeData("user1@example.com", "password");
+		db.removeSubnode("user2@example.com", "settings");
+		db.removeNode1("user2@example.com");
+
+		assertTrue(new File(db.getJournalFileName()).length() > 0);
+
+		XMLDB loaded = new XMLDB(file);
+
+		assertEquals(1, loaded.getAllNode1sCount());
+		assertNull(loaded.findNode1("user2@example.com"));
+		assertNull(loaded.getData("user1@example.com", "password"));
+		assertEquals(2, loaded.getDataInt("user1@example.com", null, "counter", 0));
+		assertArrayEquals(new String[]{"friends", "work"},
+						  loaded.getDataList("user1@example.com", "roster/user2", "groups"));
+	}
+
+	@Test
+	public void testJournalDisabledByDefault() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+
+		System.clearProperty(XMLDB.JOURNAL_ENABLED_PROP_KEY);
+
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		assertFalse(db.isJournalEnabled());
+		db.addNode1("user1");
+		db.close();
+		assertFalse(new File(db.getJournalFileName()).exists());
+		assertNotNull(new XMLDB(file).findNode1("user1"));
+	}
+
+	@Test
+	public void testNode1Index() throws Exception {
+		XMLDB db = XMLDB.createDB("memory://test", "root", "node");
+
+		db.addNode1("c");
+		db.addNode1("a");
+		assertEquals(Arrays.asList("a", "c"), db.getAllNode1sSorted());
+		db.addNode1("b");
+		db.removeNode1("c");
+		assertEquals(Arrays.asList("a", "b"), db.getAllNode1sSorted());
+		assertEquals(2, db.getAllNode1sCount());
+		assertNotNull(db.findNode1("b"));
+		assertNull(db.findNode1("c"));
+		try {
+			db.addNode1("a");
+			fail("NodeExistsException expected");
+		} catch (NodeExistsException e) {
+		}
+	}
+
+	@Test
+	public void testOrderedScans() throws Exception {
+		XMLDB db = XMLDB.createDB("memory://test", "root", "node");
+
+		for (int i = 0; i < 20; i++) {
+			db.addNode1("user" + i + "@" + ((i % 2 == 0) ? "a.com" : "b.com"));
+		}
+		db.addNode1("zed@a.com");
+
+		Iterator<String> it = db.iterateNode1sWithPrefix("user1");
+		List<String> users = new ArrayList<String>();
+
+		while (it.hasNext()) {
+			users.add(it.next());
+		}
+		assertEquals(11, users.size());
+		assertEquals("user10@a.com", users.get(0));
+		assertEquals("user1@b.com", users.get(10));
+
+		List<String> all = new ArrayList<String>();
+		List<String> page = db.getNode1sPage(null, null, 6);
+
+		while (!page.isEmpty()) {
+			all.addAll(page);
+			page = db.getNode1sPage(null, all.get(all.size() - 1), 6);
+		}
+		assertEquals(db.getAllNode1sSorted(), all);
+		assertEquals(Arrays.asList("user2@a.com", "user3@b.com"), db.getNode1sPage("user", "user1@b.com", 2));
+		assertTrue(db.getNode1sPage(null, null, 0).isEmpty());
+		try {
+			db.getNode1sPage(null, null, -1);
+			fail("Negative page limit should be rejected");
+		} catch (IllegalArgumentException e) {
+		}
+
+		it = db.iterateNode1s("user5", "zed");
+		db.removeNode1("user6@a.com");
+		assertEquals("user5@b.com", it.next());
+		assertEquals("user7@b.com", it.next());
+	}
+
+	@Test
+	public void testRemoveManyNode1s() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		for (int i = 0; i < 300; i++) {
+			db.addNode1("user" + i);
+			db.setData("user" + i, "key", "value" + i);
+		}
+		for (int i = 0; i < 300; i += 2) {
+			db.removeNode1("user" + i);
+		}
+		db.addNode1("user0");
+		assertEquals(151, db.getAllNode1sCount());
+		assertFalse(db.toString().contains("value0"));
+		assertTrue(db.toString().contains("value1"));
+		db.sync();
+
+		XMLDB loaded = new XMLDB(file);
+
+		assertEquals(151, loaded.getAllNode1sCount());
+		assertNull(loaded.getData("user0", "key"));
+		assertNull(loaded.findNode1("user2"));
+		assertEquals("value299", loaded.getData("user299", "key"));
+	}
+
+	@Test
+	public void testFinestLoggingAfterRemoveNode1() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+		Logger logger = Logger.getLogger("tigase.xml.db.XMLDB");
+		Level level = logger.getLevel();
+		boolean useParentHandlers = logger.getUseParentHandlers();
+		List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+		Handler handler = new Handler() {
+			@Override
+			public void publish(LogRecord record) {
+				messages.add(new SimpleFormatter().formatMessage(record));
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		handler.setLevel(Level.ALL);
+		logger.addHandler(handler);
+		logger.setUseParentHandlers(false);
+		logger.setLevel(Level.FINEST);
+		try {
+			db.addNode1("user1");
+			db.addNode1("user2");
+			db.setData("user1", "key", "value1");
+			db.setData("user2", "key", "value2");
+			db.removeNode1("user2");
+
+			// formatting the database while the read lock is held must not wait for the write lock
+			Future<Object> data = executor.submit(() -> db.getData("user1", "key"));
+
+			assertEquals("value1", data.get(60, TimeUnit.SECONDS));
+			assertFalse(db.toString().contains("value2"));
+			assertFalse(messages.isEmpty());
+		} finally {
+			logger.setLevel(level);
+			logger.setUseParentHandlers(useParentHandlers);
+			logger.removeHandler(handler);
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testConcurrentReadsAndWrites() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+		ExecutorService executor = Executors.newFixedThreadPool(6);
+		AtomicBoolean done = new AtomicBoolean(false);
+		List<Future<?>> writers = new ArrayList<Future<?>>();
+		List<Future<?>> readers = new ArrayList<Future<?>>();
+
+		db.setSaveDelay(5, 20);
+		for (int i = 0; i < 50; i++) {
+			db.addNode1("user" + i);
+			db.apply(new XMLDBBatch().setData("user" + i, "a", 0).setData("user" + i, "b", 0));
+		}
+		writers.add(executor.submit(() -> {
+			for (int n = 1; n <= 200; n++) {
+				for (int i = 0; i < 50; i++) {
+					db.apply(new XMLDBBatch().setData("user" + i, "a", n).setData("user" + i, "b", n));
+				}
+			}
+
+			return null;
+		}));
+		writers.add(executor.submit(() -> {
+			for (int n = 0; n < 500; n++) {
+				db.addNode1("temp" + n);
+				db.setData("temp" + n, "sub", "key", n);
+				if (n > 0) {
+					db.removeNode1("temp" + (n - 1));
+				}
+			}
+
+			return null;
+		}));
+		readers.add(executor.submit(() -> {
+			while (!done.get()) {
+				db.sync();
+			}
+
+			return null;
+		}));
+		for (int r = 0; r < 3; r++) {
+			readers.add(executor.submit(() -> {
+				while (!done.get()) {
+					for (int i = 0; i < 50; i++) {
+						Object[] values = db.findDataValues("user" + i, null, "a", "b");
+
+						assertEquals(values[0], values[1]);
+					}
+					for (String node1_id : db.getAllNode1sSorted()) {
+						try {
+							db.getData(node1_id, "sub", "key");
+						} catch (NodeNotFoundException e) {
+							// node1 has been removed in the meantime
+						}
+					}
+				}
+
+				return null;
+			}));
+		}
+		try {
+			for (Future<?> future : writers) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			done.set(true);
+			for (Future<?> future : readers) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+			executor.shutdown();
+		}
+		db.sync();
+
+		XMLDB loaded = new XMLDB(file);
+
+		assertEquals(51, loaded.getAllNode1sCount());
+		assertEquals(200, loaded.getDataInt("user49", null, "b", 0));
+		assertEquals(499, loaded.getDataInt("temp499", "sub", "key", 0));
+	}
+
+	@Test
+	public void testSubnodesAndEntries() throws Exception {
+		XMLDB db = XMLDB.createDB("memory://test", "root", "node");
+
+		db.addNode1("user");
+		db.setData("user", "settings", "a", "1");
+		db.setData("user", "settings", "b", "2");
+		db.setData("user", "settings/sub", "c", "3");
+		db.setData("user", "other", "d", "4");
+		assertArrayEquals(new String[]{"settings", "other"}, db.getSubnodes("user"));
+		assertArrayEquals(new String[]{"a", "b"}, db.getKeys("user", "settings"));
+		db.removeData("user", "settings", "a");
+		assertNull(db.getData("user", "settings", "a"));
+		assertArrayEquals(new String[]{"b"}, db.getKeys("user", "settings"));
+		db.setData("user", "settings", "a", "5");
+		assertEquals("5", db.getData("user", "settings", "a"));
+		db.removeSubnode("user", "settings/sub");
+		assertNull(db.getSubnodes("user", "settings"));
+		db.removeSubnode("user", "other");
+		assertArrayEquals(new String[]{"settings"}, db.getSubnodes("user"));
+	}
+
+	@Test
+	public void testPathCacheInvalidation() throws Exception {
+		XMLDB db = XMLDB.createDB("memory://test", "root", "node");
+
+		db.addNode1("user");
+		db.setData("user", "a/b", "key", "value");
+		assertEquals("value", db.getData("user", "a/b", "key"));
+		db.removeSubnode("user", "a");
+		assertNull(db.getData("user", "a/b", "key"));
+		db.setData("user", "a/b/c", "key", "value");
+		assertEquals("value", db.getData("user", "a/b/c", "key"));
+		db.removeSubnode("user", "a/b");
+		assertNull(db.getData("user", "a/b/c", "key"));
+		db.setData("user", "a/b", "key", "value2");
+		db.removeNode1("user");
+		db.addNode1("user");
+		assertNull(db.getData("user", "a/b", "key"));
+		db.setData("user", "/a//b/", "key", "value3");
+		assertEquals("value3", db.getData("user", "a/b", "key"));
+		db.removeSubnode("user", "a/b");
+		assertNull(db.getData("user", "/a//b/", "key"));
+	}
+
+	@Test
+	public void testPathCacheEviction() throws Exception {
+		XMLDB db;
+
+		System.setProperty(XMLDB.PATH_CACHE_SIZE_PROP_KEY, "2");
+		try {
+			db = XMLDB.createDB("memory://test", "root", "node");
+		} finally {
+			System.clearProperty(XMLDB.PATH_CACHE_SIZE_PROP_KEY);
+		}
+		for (int i = 0; i < 10; i++) {
+			db.addNode1("user" + i);
+			db.setData("user" + i, "a/b" + i, "key", "value" + i);
+		}
+		for (int r = 0; r < 3; r++) {
+			for (int i = 0; i < 10; i++) {
+				assertEquals("value" + i, db.getData("user" + i, "a/b" + i, "key"));
+			}
+		}
+		assertEquals("a/b", XMLDB.normalizePath("/a//b/"));
+		assertEquals("a/b", XMLDB.normalizePath("a/b"));
+	}
+
+	@Test
+	public void testDecodedValues() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+		int[] numbers = new int[]{1, 2, 3};
+
+		db.addNode1("user");
+		db.setData("user", "numbers", new int[]{7, 8, 9, 10});
+		db.setData("user", "numbers", numbers);
+		numbers[0] = 100;
+		db.getDataIntList("user", null, "numbers")[1] = 200;
+		assertArrayEquals(new int[]{1, 2, 3}, db.getDataIntList("user", null, "numbers"));
+		db.setData("user", "name", "a b&c");
+		assertArrayEquals(new String[]{"a b&c"}, db.getDataList("user", null, "name"));
+		db.sync();
+
+		XMLDB loaded = new XMLDB(file);
+
+		assertArrayEquals(new int[]{1, 2, 3}, loaded.getDataIntList("user", null, "numbers"));
+		assertEquals("a b&c", loaded.getData("user", "name"));
+	}
+
+	@Test
+	public void testPrimitiveValues() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		db.addNode1("user");
+		db.setData("user", "stats", "logins", 12);
+		db.setData("user", "stats", "last", 1234567890123L);
+		db.setData("user", "stats", "ratio", -0.25);
+		db.setData("user", "stats", "enabled", true);
+		db.setData("user", "stats", "times", new long[]{1L, Long.MAX_VALUE});
+		db.setData("user", "stats", "flags", new boolean[]{true, false});
+		assertEquals(5, db.getDataInt("user", "missing", "logins", 5));
+		assertEquals(12, db.getDataInt("user", "stats", "logins", 0));
+
+		XMLDB loaded = new XMLDB(file);
+
+		assertEquals(12, loaded.getDataInt("user", "stats", "logins", 0));
+		assertEquals(12L, loaded.getDataLong("user", "stats", "logins", 0L));
+		assertEquals(1234567890123L, loaded.getDataLong("user", "stats", "last", 0L));
+		assertEquals(-0.25, loaded.getDataDouble("user", "stats", "ratio", 0), 0);
+		assertTrue(loaded.getDataBoolean("user", "stats", "enabled", false));
+		assertFalse(loaded.getDataBoolean("user", "stats", "missing", false));
+		assertArrayEquals(new long[]{1L, Long.MAX_VALUE}, loaded.getDataLongList("user", "stats", "times"));
+		assertTrue(Arrays.equals(new boolean[]{true, false}, loaded.getDataBooleanList("user", "stats", "flags")));
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		db.addNode1("user1");
+		db.addNode1("user2");
+		db.setData("user1", "old", "value");
+
+		XMLDBBatch batch = new XMLDBBatch().setData("user1", "vcard", "name", "User One")
+				.setData("user1", "vcard", "age", 33)
+				.removeData("user1", "old")
+				.setData("user2", "roster", "groups", new String[]{"a", "b"})
+				.setData("user3", "vcard", "name", "User Three");
+
+		try {
+			db.apply(batch, true);
+			fail("Missing node1 should fail atomic batch");
+		} catch (NodeNotFoundException e) {
+		}
+		assertNull(db.getData("user1", "vcard", "name"));
+		assertEquals("value", db.getData("user1", "old"));
+
+		try {
+			db.apply(batch);
+			fail("Missing node1 should be reported");
+		} catch (NodeNotFoundException e) {
+		}
+		assertEquals("User One", db.getData("user1", "vcard", "name"));
+		assertNull(db.getData("user1", "old"));
+
+		XMLDB loaded = new XMLDB(file);
+
+		assertEquals("User One", loaded.getData("user1", "vcard", "name"));
+		assertEquals(33, loaded.getDataInt("user1", "vcard", "age", 0));
+		assertNull(loaded.getData("user1", "old"));
+		assertArrayEquals(new String[]{"a", "b"}, loaded.getDataList("user2", "roster", "groups"));
+		assertNull(loaded.findNode1("user3"));
+	}
+
+	@Test
+	public void testInvalidBatch() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		db.addNode1("user1");
+		db.setData("user1", "key", "old");
+
+		XMLDBBatch[] batches = new XMLDBBatch[]{
+				new XMLDBBatch().setData("user1", "key", "new").setData("user1", "other", null),
+				new XMLDBBatch().setData("user1", "key", "new").setData("user1", null, "value"),
+				new XMLDBBatch().setData("user1", "key", "new").removeData(null, "key"),
+				new XMLDBBatch().setData("user1", "key", "new").setData("user1", "a/null", "key", "value"),
+				new XMLDBBatch().setData("user1", "key", "new").setData("user1", "list", new String[]{"a", null}),
+				new XMLDBBatch().setData("user1", "key", "new").setData("user1", "chars", new char[]{'a'})};
+		long journalSize = new File(db.getJournalFileName()).length();
+
+		for (XMLDBBatch batch : batches) {
+			try {
+				db.apply(batch);
+				fail("Invalid batch should be rejected");
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		assertEquals("old", db.getData("user1", "key"));
+		assertEquals(journalSize, new File(db.getJournalFileName()).length());
+		assertEquals("old", new XMLDB(file).getData("user1", "key"));
+	}
+
+	@Test
+	public void testScheduledSave() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db;
+
+		System.setProperty(XMLDB.JOURNAL_ENABLED_PROP_KEY, "false");
+		try {
+			db = XMLDB.createDB(file, "root", "node");
+		} finally {
+			System.setProperty(XMLDB.JOURNAL_ENABLED_PROP_KEY, "true");
+		}
+		db.setSaveDelay(50, 200);
+		db.addNode1("user");
+		db.setData("user", "key", "value");
+		assertTrue(db.isDirty());
+		for (int i = 0; (i < 100) && db.isDirty(); i++) {
+			Thread.sleep(50);
+		}
+		assertFalse(db.isDirty());
+		assertEquals("value", new XMLDB(file).getData("user", "key"));
+
+		db.setSaveDelay(60000, 60000);
+		db.setData("user", "key", "value2");
+		assertTrue(db.isDirty());
+		db.close();
+		assertFalse(db.isDirty());
+		assertEquals("value2", new XMLDB(file).getData("user", "key"));
+	}
+
+	@Test
+	public void testBinaryFormat() throws Exception {
+		String file = new File(folder.getRoot(), "db.bin").getPath();
+		XMLDB db;
+
+		System.setProperty(XMLDB.BINARY_PROP_KEY, "true");
+		try {
+			db = XMLDB.createDB(file, "root", "user");
+		} finally {
+			System.clearProperty(XMLDB.BINARY_PROP_KEY);
+		}
+		db.addNode1("user1");
+		db.addNode1("user2");
+		db.setData("user1", "name", "Zażółć & <gęślą>");
+		db.setData("user1", "stats", "logins", 12);
+		db.setData("user1", "stats", "last", 1234567890123L);
+		db.setData("user1", "stats", "ratio", 0.5);
+		db.setData("user1", "stats", "enabled", true);
+		db.setData("user1", "roster/user2", "groups", new String[]{"a", "b c"});
+		db.setData("user2", "numbers", new int[]{1, 2, 3});
+		db.close();
+		assertTrue(XMLDBBinary.isBinary(new File(file)));
+
+		XMLDB loaded = new XMLDB(file);
+
+		assertTrue(loaded.isBinary());
+		assertEquals(Arrays.asList("user1", "user2"), loaded.getAllNode1sSorted());
+		assertEquals("Zażółć & <gęślą>", loaded.getData("user1", "name"));
+		assertEquals(12, loaded.getDataInt("user1", "stats", "logins", 0));
+		assertEquals(1234567890123L, loaded.getDataLong("user1", "stats", "last", 0L));
+		assertEquals(0.5, loaded.getDataDouble("user1", "stats", "ratio", 0), 0);
+		assertTrue(loaded.getDataBoolean("user1", "stats", "enabled", false));
+		assertArrayEquals(new String[]{"a", "b c"}, loaded.getDataList("user1", "roster/user2", "groups"));
+		assertArrayEquals(new int[]{1, 2, 3}, loaded.getDataIntList("user2", null, "numbers"));
+		loaded.close();
+
+		String xmlFile = new File(folder.getRoot(), "db.xml").getPath();
+
+		XMLDBBinary.main(new String[]{"to-xml", file, xmlFile});
+		assertFalse(XMLDBBinary.isBinary(new File(xmlFile)));
+
+		XMLDB xml = new XMLDB(xmlFile);
+
+		assertFalse(xml.isBinary());
+		assertEquals(Arrays.asList("user1", "user2"), xml.getAllNode1sSorted());
+		assertEquals("Zażółć & <gęślą>", xml.getData("user1", "name"));
+		assertEquals(1234567890123L, xml.getDataLong("user1", "stats", "last", 0L));
+		assertArrayEquals(new String[]{"a", "b c"}, xml.getDataList("user1", "roster/user2", "groups"));
+		assertArrayEquals(new int[]{1, 2, 3}, xml.getDataIntList("user2", null, "numbers"));
+	}
+
+	@Test
+	public void testFormatCache() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		db.addNode1("user1");
+		db.addNode1("user2");
+		db.setData("user1", "vcard", "name", "One");
+		db.setData("user2", "vcard", "name", "Two");
+		db.setData("user2", "roster/user1", "name", "One");
+		db.sync();
+		db.setData("user1", "vcard", "name", "First");
+		db.removeSubnode("user2", "roster/user1");
+		db.setData("user2", "vcard", "nick", "2");
+		db.sync();
+		assertEquals("<?xml version='1.0' encoding='UTF-8'?>\n" + db.toString() + "\n",
+					 new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8));
+		db.removeData("user2", "vcard", "name");
+		db.sync();
+
+		XMLDB loaded = new XMLDB(file);
+
+		assertEquals("First", loaded.getData("user1", "vcard", "name"));
+		assertNull(loaded.getData("user2", "vcard", "name"));
+		assertEquals("2", loaded.getData("user2", "vcard", "nick"));
+		assertNull(loaded.getSubnodes("user2", "roster"));
+	}
+
+	@Test
+	public void testBackupDuringChanges() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		String backupFile = new File(folder.getRoot(), "backup.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		for (int i = 0; i < 100; i++) {
+			db.addNode1("user" + i);
+			db.setData("user" + i, "a", 0);
+			db.setData("user" + i, "b", 0);
+		}
+
+		Thread writer = new Thread(() -> {
+			try {
+				for (int n = 1; n <= 200; n++) {
+					for (int i = 0; i < 100; i++) {
+						db.apply(new XMLDBBatch().setData("user" + i, "a", String.valueOf(n))
+										 .setData("user" + i, "b", String.valueOf(n)));
+					}
+				}
+			} catch (NodeNotFoundException e) {
+				throw new RuntimeException(e);
+			}
+		});
+
+		writer.start();
+		for (int n = 0; n < 5; n++) {
+			db.backup(backupFile);
+
+			XMLDB backup = new XMLDB(backupFile);
+
+			assertEquals(100, backup.getAllNode1sCount());
+			for (int i = 0; i < 100; i++) {
+				assertEquals(backup.getData("user" + i, "a").toString(), backup.getData("user" + i, "b").toString());
+			}
+		}
+		writer.join();
+		db.sync();
+
+		XMLDB loaded = new XMLDB(file);
+
+		assertEquals("200", loaded.getData("user99", "a"));
+		assertFalse(new File(backupFile + ".tmp").exists());
+	}
+
+	@Test
+	public void testOldJournalReplay() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		db.addNode1("user1");
+		db.setData("user1", "key", "old");
+		db.setData("user1", "other", "old");
+
+		// Database file has not been written after the journal was rotated
+		Files.move(Paths.get(db.getJournalFileName()), Paths.get(db.getJournalFileName() + ".old"));
+
+		XMLDB rotated = new XMLDB(file);
+
+		rotated.setData("user1", "key", "new");
+
+		XMLDB loaded = new XMLDB(file);
+
+		assertEquals("new", loaded.getData("user1", "key"));
+		assertEquals("old", loaded.getData("user1", "other"));
+		loaded.sync();
+		assertFalse(new File(db.getJournalFileName() + ".old").exists());
+		assertEquals("new", new XMLDB(file).getData("user1", "key"));
+	}
+
+	@Test
+	public void testJournalRotationFailure() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+		File oldJournal = new File(db.getJournalFileName() + ".old");
+
+		db.addNode1("user1");
+		db.setData("user1", "key", "before");
+
+		// Journal can't be rotated while the old journal can't be written
+		assertTrue(oldJournal.mkdir());
+		try {
+			db.sync();
+			fail("Write should fail when journal can't be rotated");
+		} catch (IOException e) {
+		}
+		db.setData("user1", "key", "after");
+		assertTrue(oldJournal.delete());
+		assertEquals("after", new XMLDB(file).getData("user1", "key"));
+
+		db.sync();
+		assertEquals(0, new File(db.getJournalFileName()).length());
+		db.setData("user1", "key", "rotated");
+		assertEquals("rotated", new XMLDB(file).getData("user1", "key"));
+	}
+
+	@Test
+	public void testSecondaryIndex() throws Exception {
+		XMLDB db = XMLDB.createDB("memory://db.xml", "root", "node");
+
+		for (int i = 0; i < 10; i++) {
+			db.addNode1("user" + i);
+			db.setData("user" + i, "/vcard", "city", (i % 2 == 0) ? "Paris" : "Rome");
+		}
+		db.setData("user1", "groups", new String[]{"admins", "users"});
+		db.setData("user2", "groups", new String[]{"users"});
+		assertEquals(5, db.findNode1s("vcard", "city", "Paris").size());
+		assertTrue(db.findNode1s("vcard", "city", null).isEmpty());
+
+		db.createIndex("vcard", "city");
+		db.createIndex(null, "groups");
+		assertTrue(db.isIndexed("/vcard/", "city"));
+		assertEquals(5, db.findNode1s("vcard", "city", "Paris").size());
+		assertEquals(Arrays.asList("user1"), db.findNode1s(null, "groups", "admins"));
+		assertTrue(db.findNode1s("vcard", "city", null).isEmpty());
+
+		db.setData("user0", "vcard", "city", "Rome");
+		db.removeData("user2", "vcard", "city");
+		db.removeNode1("user4");
+		db.removeSubnode("user6", "vcard");
+		db.apply(new XMLDBBatch().setData("user1", "vcard", "city", "Paris").removeData("user1", "groups"));
+		assertEquals(Arrays.asList("user1", "user8"), sorted(db.findNode1s("vcard", "city", "Paris")));
+		assertEquals(Arrays.asList("user1", "user8"),
+					 sorted(db.findNode1sMatching("vcard", "city", value -> value.toString().startsWith("P"))));
+		assertEquals(Arrays.asList("user2"), db.findNode1s(null, "groups", "users"));
+
+		db.dropIndex("vcard", "city");
+		assertFalse(db.isIndexed("vcard", "city"));
+		assertEquals(Arrays.asList("user1", "user8"), sorted(db.findNode1s("vcard", "city", "Paris")));
+	}
+
+	@Test
+	public void testFindData() throws Exception {
+		XMLDB db = XMLDB.createDB("memory://test", "root", "node");
+
+		db.addNode1("user");
+		db.setData("user", "settings", "lang", "pl");
+		db.setData("user", "settings", "logins", 3);
+		db.setData("user", "settings", "groups", new String[]{"a", "b"});
+		assertEquals("pl", db.findData("user", "settings", "lang"));
+		assertNull(db.findData("user", "settings", "missing"));
+		assertNull(db.findData("user", "other", "lang"));
+		assertNull(db.findData("new-user", "settings", "lang"));
+
+		Object[] values = db.findDataValues("user", "settings", "lang", "missing", "logins", "groups");
+
+		assertEquals("pl", values[0]);
+		assertNull(values[1]);
+		assertEquals(3, values[2]);
+		assertArrayEquals(new String[]{"a", "b"}, (String[]) values[3]);
+		assertArrayEquals(new Object[2], db.findDataValues("user", "other", "lang", "logins"));
+		assertNull(db.findDataValues("new-user", "settings", "lang", "logins"));
+	}
+
+	@Test
+	public void testBulkLoader() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		db.addNode1("existing");
+		db.createIndex("vcard", "city");
+		assertEquals(Arrays.asList("existing"), db.getAllNode1sSorted());
+
+		XMLDBBulkLoader loader = db.newBulkLoader();
+
+		for (int i = 0; i < 1000; i++) {
+			loader.addNode1("user" + i).setData("user" + i, "vcard", "city", (i < 10) ? "Paris" : "Rome");
+			loader.setData("user" + i, "logins", i);
+		}
+		loader.addNode1("existing");
+		try {
+			loader.commit();
+			fail("Existing node1 can't be loaded");
+		} catch (NodeExistsException e) {
+		}
+		assertEquals(1, db.getAllNode1sCount());
+
+		loader = db.newBulkLoader();
+		for (int i = 0; i < 1000; i++) {
+			loader.setData("user" + i, "vcard", "city", (i < 10) ? "Paris" : "Rome");
+			loader.setData("user" + i, "logins", i);
+		}
+		loader.commit();
+		assertEquals(0, loader.size());
+		assertFalse(db.isDirty());
+		assertEquals(1001, db.getAllNode1sCount());
+		assertEquals(1001, db.getAllNode1sSorted().size());
+		assertEquals(10, db.findNode1s("vcard", "city", "Paris").size());
+
+		XMLDB loaded = new XMLDB(file);
+
+		assertEquals(1001, loaded.getAllNode1sCount());
+		assertEquals("Rome", loaded.getData("user500", "vcard", "city"));
+		assertEquals(999, loaded.getDataInt("user999", null, "logins", 0));
+	}
+
+	@Test
+	public void testSyncTruncatesJournal() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		db.addNode1("user1@example.com");
+		db.setData("user1@example.com", "key", "value");
+		db.sync();
+		assertEquals(0, new File(db.getJournalFileName()).length());
+		assertFalse(new File(file + ".tmp").exists());
+
+		XMLDB loaded = new XMLDB(file);
+
+		assertEquals("value", loaded.getData("user1@example.com", "key"));
+	}
+
+	@Test
+	public void testIncompleteJournalRecord() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		db.addNode1("user1@example.com");
+		db.setData("user1@example.com", "key", "value");
+		try (OutputStream out = new FileOutputStream(db.getJournalFileName(), true)) {
+			out.write("<set node1=\"user1@example.com\"><entry key=\"key\" type=\"String\" val"
+							  .getBytes(StandardCharsets.UTF_8));
+		}
+
+		XMLDB loaded = new XMLDB(file);
+
+		assertEquals("value", loaded.getData("user1@example.com", "key"));
+
+		// Records appended after the broken tail must not be lost
+		loaded.setData("user1@example.com", "key", "value2");
+		assertEquals("value2", new XMLDB(file).getData("user1@example.com", "key"));
+	}
+
+	@Test
+	public void testJournalEscapedEntryKey() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		db.addNode1("a&b");
+		db.setData("a&b", "k&<ey\"", "v2");
+		db.setData("a&b", "sub&<\"", "list&<\"", new String[]{"x", "y"});
+		db.addNode1("later");
+
+		XMLDB loaded = new XMLDB(file);
+
+		assertEquals("v2", loaded.getData("a&b", "k&<ey\""));
+		assertArrayEquals(new String[]{"x", "y"}, loaded.getDataList("a&b", "sub&<\"", "list&<\""));
+		assertNotNull(loaded.findNode1("later"));
+	}
+
+	@Test
+	public void testCompactedEscapedKey() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		db.addNode1("a&b");
+		db.setData("a&b", "sub&<\"", "k&<ey\"", "v2");
+		db.setData("a&b", "list&<\"", new String[]{"x", "y"});
+
+		XMLDB loaded = new XMLDB(file);
+
+		// Journal is compacted into the database file, which has to be parsed again
+		loaded.sync();
+		assertEquals(0, new File(db.getJournalFileName()).length());
+		loaded = new XMLDB(file);
+		assertEquals("v2", loaded.getData("a&b", "sub&<\"", "k&<ey\""));
+		assertArrayEquals(new String[]{"x", "y"}, loaded.getDataList("a&b", null, "list&<\""));
+		assertArrayEquals(new String[]{"k&<ey\""}, loaded.getKeys("a&b", "sub&<\""));
+	}
+
+	@Test
+	public void testBrokenJournalKept() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		db.addNode1("user1");
+		try (OutputStream out = new FileOutputStream(db.getJournalFileName(), true)) {
+			out.write("<set node1=\"user1\"><entry key=\"a&b\"/></set>\n".getBytes(StandardCharsets.UTF_8));
+		}
+		db.addNode1("user2");
+
+		new XMLDB(file);
+
+		File[] broken = folder.getRoot().listFiles((dir, name) -> name.startsWith("db.xml.journal.broken."));
+
+		assertEquals(1, broken.length);
+		assertTrue(new String(Files.readAllBytes(broken[0].toPath()), StandardCharsets.UTF_8).contains("user2"));
+	}
+
+	@Test
+	public void testJournalReplayedWhenDisabled() throws Exception {
+		String file = new File(folder.getRoot(), "db.xml").getPath();
+		XMLDB db = XMLDB.createDB(file, "root", "node");
+
+		db.addNode1("user1");
+		db.setData("user1", "key", "base");
+		db.sync();
+		db.setData("user1", "key", "journaled");
+
+		XMLDB loaded;
+
+		System.setProperty(XMLDB.JOURNAL_ENABLED_PROP_KEY, "false");
+		try {
+			loaded = new XMLDB(file);
+		} finally {
+			System.setProperty(XMLDB.JOURNAL_ENABLED_PROP_KEY, "true");
+		}
+
+		assertFalse(loaded.isJournalEnabled());
+		assertEquals("journaled", loaded.getData("user1", "key"));
+		assertFalse(new File(db.getJournalFileName()).exists());
+		assertEquals("journaled", new XMLDB(file).getData("user1", "key"));
+	}
+
+	private static List<String> sorted(List<String> list) {
+		Collections.sort(list);
+
+		return list;
+	}
+
+}